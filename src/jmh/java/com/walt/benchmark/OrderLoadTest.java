@@ -0,0 +1,107 @@
+package com.walt.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Load test of POST /orders against a running instance.
+ * sends the given number of orders from the given number of concurrent clients, every order for its own hour
+ * so drivers don't run out, and prints the throughput, the latency percentiles and the count of each status.
+ *
+ * usage: OrderLoadTest baseUrl restaurantId customerId[,customerId...] [requests] [concurrency]
+ * the customers must be in the restaurant's city.
+ */
+public class OrderLoadTest {
+
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length < 3) {
+            System.err.println("usage: OrderLoadTest baseUrl restaurantId customerId[,customerId...] "
+                    + "[requests] [concurrency]");
+            System.exit(1);
+        }
+        URL url = toUrl(args[0] + "/orders");
+        String restaurantId = args[1];
+        String[] customerIds = args[2].split(",");
+        int requests = args.length > 3 ? Integer.parseInt(args[3]) : 10000;
+        int concurrency = args.length > 4 ? Integer.parseInt(args[4]) : 500;
+
+        long[] latencies = new long[requests];
+        Map<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+        AtomicInteger next = new AtomicInteger();
+        long firstHour = System.currentTimeMillis() / TimeUnit.HOURS.toMillis(1) + 1;
+
+        ExecutorService clients = Executors.newFixedThreadPool(concurrency);
+        long started = System.nanoTime();
+        for (int c = 0; c < concurrency; c++) {
+            clients.execute(() -> {
+                int i;
+                while ((i = next.getAndIncrement()) < requests) {
+                    String body = "{\"customerId\":" + customerIds[i % customerIds.length]
+                            + ",\"restaurantId\":" + restaurantId
+                            + ",\"deliveryTime\":" + TimeUnit.HOURS.toMillis(firstHour + i) + "}";
+                    long sent = System.nanoTime();
+                    int status = post(url, body);
+                    latencies[i] = System.nanoTime() - sent;
+                    statuses.computeIfAbsent(status, s -> new LongAdder()).increment();
+                }
+            });
+        }
+        clients.shutdown();
+        clients.awaitTermination(1, TimeUnit.HOURS);
+        long elapsed = System.nanoTime() - started;
+
+        Arrays.sort(latencies);
+        System.out.printf("%d orders from %d clients in %.1f s - %.0f orders/s%n", requests, concurrency,
+                elapsed / 1e9, requests / (elapsed / 1e9));
+        for (double percentile : new double[]{50, 90, 99, 99.9, 100}) {
+            int index = Math.min(requests - 1, (int) Math.ceil(percentile / 100 * requests) - 1);
+            System.out.printf("p%-5s %8.1f ms%n", percentile, latencies[Math.max(0, index)] / 1e6);
+        }
+        System.out.println("statuses " + new TreeMap<>(statuses));
+    }
+
+    /**
+     * @return the response's status, or -1 if the request failed
+     */
+    private static int post(URL url, String body) {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type", "application/json");
+            connection.setDoOutput(true);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+            int status = connection.getResponseCode();
+            try (InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+                byte[] buffer = new byte[1024];
+                while (in != null && in.read(buffer) != -1) { //drain so the connection is reused
+                }
+            }
+            return status;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    private static URL toUrl(String url) {
+        try {
+            return new URL(url);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+}
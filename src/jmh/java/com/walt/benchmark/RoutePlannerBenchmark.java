@@ -0,0 +1,59 @@
+package com.walt.benchmark;
+
+import com.walt.route.RoutePlanner;
+import com.walt.route.RouteStops;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of planning a single route of 5-50 stops spread around the restaurant within 2Km,
+ * nearest neighbour alone against nearest neighbour with 2-opt to convergence.
+ * run with: mvn -Pbenchmark test-compile exec:exec -Djmh.args="RoutePlannerBenchmark"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class RoutePlannerBenchmark {
+
+    private static final double RESTAURANT_LATITUDE = 32.0800;
+    private static final double RESTAURANT_LONGITUDE = 34.7800;
+
+    /**
+     * about 2Km in degrees
+     */
+    private static final double SPREAD = 0.018;
+
+    @Param({"5", "10", "20", "50"})
+    public int stops;
+
+    private RouteStops route;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(42);
+        double[] latitudes = new double[this.stops + 1];
+        double[] longitudes = new double[this.stops + 1];
+        latitudes[0] = RESTAURANT_LATITUDE;
+        longitudes[0] = RESTAURANT_LONGITUDE;
+        for (int i = 1; i <= this.stops; i++) {
+            latitudes[i] = RESTAURANT_LATITUDE + (random.nextDouble() * 2 - 1) * SPREAD;
+            longitudes[i] = RESTAURANT_LONGITUDE + (random.nextDouble() * 2 - 1) * SPREAD;
+        }
+        this.route = new RouteStops(latitudes, longitudes);
+    }
+
+    @Benchmark
+    public int[] nearestNeighbour() {
+        return RoutePlanner.plan(this.route, System.nanoTime() - 1); //deadline already passed, no 2-opt
+    }
+
+    @Benchmark
+    public int[] twoOpt() {
+        return RoutePlanner.plan(this.route, System.nanoTime() + TimeUnit.DAYS.toNanos(1));
+    }
+}
@@ -0,0 +1,130 @@
+package com.walt.benchmark;
+
+import com.walt.WaltApplication;
+import com.walt.WaltService;
+import com.walt.dao.*;
+import com.walt.exceptions.CitiesDontMatchException;
+import com.walt.exceptions.NoDriversAvailableException;
+import com.walt.model.*;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Benchmarks of the WaltService hot paths on an embedded H2 database filled with a synthetic dataset.
+ * run with: mvn -Pbenchmark test-compile exec:exec -Djmh.args="WaltServiceBenchmark -prof gc"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class WaltServiceBenchmark {
+
+    private static final int CITIES = 10;
+    private static final int CUSTOMERS = 1000;
+    private static final int RESTAURANTS = 100;
+    private static final int SAVE_CHUNK = 10_000;
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+    @Param({"1000", "100000", "1000000"})
+    public int deliveries;
+
+    @Param({"10", "1000", "10000"})
+    public int drivers;
+
+    private ConfigurableApplicationContext context;
+    private WaltService waltService;
+    private List<City> cities;
+    private List<Customer> customers;
+    private List<Restaurant> restaurants;
+
+    /**
+     * every order is for a new hour, after the synthetic deliveries, so drivers never run out
+     */
+    private final AtomicLong nextDeliveryTime = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        this.context = new SpringApplicationBuilder(WaltApplication.class)
+                .web(WebApplicationType.NONE)
+                .properties("spring.datasource.url=jdbc:h2:mem:benchmark;DB_CLOSE_DELAY=-1",
+                        "logging.level.root=warn")
+                .run();
+        this.waltService = this.context.getBean(WaltService.class);
+
+        Random random = new Random(42);
+        this.cities = new ArrayList<>();
+        for (int i = 0; i < CITIES; i++) {
+            this.cities.add(new City("city" + i));
+        }
+        this.context.getBean(CityRepository.class).saveAll(this.cities);
+
+        List<Driver> driverList = new ArrayList<>();
+        for (int i = 0; i < this.drivers; i++) {
+            driverList.add(new Driver("driver" + i, this.cities.get(i % CITIES)));
+        }
+        this.context.getBean(DriverRepository.class).saveAll(driverList);
+
+        this.customers = new ArrayList<>();
+        for (int i = 0; i < CUSTOMERS; i++) {
+            this.customers.add(new Customer("customer" + i, this.cities.get(i % CITIES), "address" + i));
+        }
+        this.context.getBean(CustomerRepository.class).saveAll(this.customers);
+
+        this.restaurants = new ArrayList<>();
+        for (int i = 0; i < RESTAURANTS; i++) {
+            this.restaurants.add(new Restaurant("restaurant" + i, this.cities.get(i % CITIES), "address" + i));
+        }
+        this.context.getBean(RestaurantRepository.class).saveAll(this.restaurants);
+
+        DeliveryRepository deliveryRepository = this.context.getBean(DeliveryRepository.class);
+        List<Delivery> chunk = new ArrayList<>(SAVE_CHUNK);
+        for (int i = 0; i < this.deliveries; i++) {
+            int city = random.nextInt(CITIES);
+            Driver driver = driverList.get(city + CITIES * random.nextInt(Math.max(1, this.drivers / CITIES)));
+            Delivery delivery = new Delivery(driver, this.restaurants.get(city),
+                    this.customers.get(city), new Date(i * HOUR));
+            delivery.setDistance(random.nextInt(20));
+            chunk.add(delivery);
+            if (chunk.size() == SAVE_CHUNK) {
+                deliveryRepository.saveAll(chunk);
+                chunk.clear();
+            }
+        }
+        deliveryRepository.saveAll(chunk);
+        this.nextDeliveryTime.set(this.deliveries * HOUR);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.context.close();
+    }
+
+    @Benchmark
+    public Delivery createOrderAndAssignDriver() throws NoDriversAvailableException, CitiesDontMatchException {
+        long time = this.nextDeliveryTime.getAndAdd(HOUR);
+        int city = (int) ((time / HOUR) % CITIES);
+        return this.waltService.createOrderAndAssignDriver(this.customers.get(city), this.restaurants.get(city),
+                new Date(time));
+    }
+
+    @Benchmark
+    public List<DriverDistance> getDriverRankReport() {
+        return this.waltService.getDriverRankReport();
+    }
+
+    @Benchmark
+    public List<DriverDistance> getDriverRankReportByCity() {
+        return this.waltService.getDriverRankReportByCity(this.cities.get(0));
+    }
+}
@@ -5,13 +5,36 @@ import com.walt.exceptions.NoDriversAvailableException;
 import com.walt.model.*;
 import java.util.Date;
 import java.util.List;
+import java.util.stream.Stream;
 
 public  interface WaltService{
 
     Delivery createOrderAndAssignDriver(Customer customer, Restaurant restaurant, Date deliveryTime) throws NoDriversAvailableException, CitiesDontMatchException;
 
+    Delivery createOrderAndAssignDriver(Customer customer, Restaurant restaurant, Date deliveryTime, AssignmentStrategy strategy) throws NoDriversAvailableException, CitiesDontMatchException;
+
+    List<Delivery> createOrdersAndAssignDrivers(List<OrderRequest> orders) throws NoDriversAvailableException, CitiesDontMatchException;
+
+    void updateDriverLocation(Driver driver, double latitude, double longitude);
+
     List<DriverDistance> getDriverRankReport();
 
     List<DriverDistance> getDriverRankReportByCity(City city);
+
+    List<DriverDistance> getDriverRankReport(int offset, int limit);
+
+    List<DriverDistance> getDriverRankReportByCity(City city, int offset, int limit);
+
+    List<DriverDistance> getDriverRankReport(Date from, Date to);
+
+    List<DriverDistance> getDriverRankReportByCity(City city, Date from, Date to);
+
+    List<DriverRank> getTopDrivers(Date from, Date to, int k);
+
+    List<DriverRank> getTopDriversByCity(City city, Date from, Date to, int k);
+
+    Stream<DriverRank> streamDriverRankReport();
+
+    Stream<DriverRank> streamDriverRankReportByCity(City city);
 }
 
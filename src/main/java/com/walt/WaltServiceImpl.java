@@ -1,209 +1,740 @@
 package com.walt;
 
 import com.walt.exceptions.CitiesDontMatchException;
+import com.walt.exceptions.CityNotOwnedException;
 import com.walt.exceptions.NoDriversAvailableException;
+import com.walt.bundle.OrderBundler;
+import com.walt.cluster.ClusterRouter;
+import com.walt.dao.CustomerRepository;
+import com.walt.dao.DeliveryBundleRepository;
 import com.walt.dao.DeliveryRepository;
+import com.walt.dao.DriverLocationRepository;
 import com.walt.dao.DriverRepository;
+import com.walt.dao.OutboxEventRepository;
+import com.walt.distance.DistanceCalculator;
+import com.walt.index.CityCapacityTable;
+import com.walt.index.DriverDistanceBuckets;
+import com.walt.index.DriverLeaderboard;
+import com.walt.index.DriverLoadIndex;
+import com.walt.index.DriverLocationIndex;
+import com.walt.index.DriverScheduleIndex;
 import com.walt.model.*;
-import com.walt.sort.SortByDistance;
+import com.walt.route.RoutePlanner;
+import com.walt.route.RouteStops;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import javax.annotation.PostConstruct;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
 @Service
 public class WaltServiceImpl implements WaltService {
 
 
+    @Autowired
+    private DeliveryRepository deliveryRepository;
+    @Autowired
+    private DriverRepository driverRepository;
+    @Autowired
+    private CustomerRepository customerRepository;
+    @Autowired
+    private OutboxEventRepository outboxEventRepository;
+    @Autowired
+    private DeliveryBundleRepository deliveryBundleRepository;
+    @Autowired
+    private DriverLocationRepository driverLocationRepository;
+
+    @Autowired
+    private DriverScheduleIndex driverScheduleIndex;
+    @Autowired
+    private DriverLoadIndex driverLoadIndex;
+    @Autowired
+    private CityCapacityTable cityCapacityTable;
+    @Autowired
+    private DriverLeaderboard driverLeaderboard;
+
+    @Autowired
+    private DriverDistanceBuckets driverDistanceBuckets;
+    @Autowired
+    private DistanceCalculator distanceCalculator;
+    @Autowired
+    private OrderBundler orderBundler;
+
+    @Autowired
+    private RoutePlanner routePlanner;
+    @Autowired
+    private DriverLocationIndex driverLocationIndex;
+    @Autowired
+    private MeterRegistry meterRegistry;
+    @Autowired
+    private ClusterRouter clusterRouter;
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    /**
+     * strategy of createOrderAndAssignDriver when none is given
+     */
+    @Value("${walt.assignment.strategy:LEAST_BUSY}")
+    private AssignmentStrategy defaultStrategy;
+
     /**
-     * minimum possible distance for a delivery
+     * number of nearest drivers the WEIGHTED strategy scores
      */
-    private static final int MIN_DIST = 0;
+    @Value("${walt.assignment.nearest-candidates:10}")
+    private int nearestCandidates;
 
     /**
-     * maximum possible distance for a delivery
+     * the WEIGHTED strategy treats every past delivery of a driver as this many extra Km to the restaurant
      */
-    private static final int MAX_DIST = 20;
+    @Value("${walt.assignment.km-per-delivery:1.0}")
+    private double kmPerDelivery;
 
+    private TransactionTemplate transactionTemplate;
 
-    @Autowired
-    private DeliveryRepository deliveryRepository;
-    @Autowired
-    private DriverRepository driverRepository;
+    @PostConstruct
+    public void start() {
+        this.transactionTemplate = new TransactionTemplate(this.transactionManager);
+    }
 
 
     /**
-     * createOrderAndAssignDriver - create delivery and assign a driver that is free at te given time and
-     * is the least busy one.
+     * createOrderAndAssignDriver - create delivery and assign a driver that is free at te given time,
+     * picked by the default assignment strategy (walt.assignment.strategy, the least busy one unless configured).
      * @param customer customer to create a delivery for
      * @param restaurant the delivery is from restaurant
      * @param deliveryTime given time for delivery
-     * @return new Delivery for customer, from restaurant, at deliveryTime, with the least busy driver.
+     * @return new Delivery for customer, from restaurant, at deliveryTime, with the picked driver.
      * @throws NoDriversAvailableException
      * @throws CitiesDontMatchException
      */
     @Override
+    @Transactional
     public Delivery createOrderAndAssignDriver(Customer customer, Restaurant restaurant, Date deliveryTime)
             throws NoDriversAvailableException, CitiesDontMatchException {
+        return createOrderAndAssignDriver(customer, restaurant, deliveryTime, this.defaultStrategy);
+    }
 
-            if (!customer.getCity().getId().equals(restaurant.getCity().getId())) {
-                throw new CitiesDontMatchException();
-            }
+    /**
+     * createOrderAndAssignDriver - create delivery and assign a driver that is free at te given time,
+     * picked by the given strategy.
+     * the new delivery (and the customer, if new) is saved in one transaction.
+     * @param customer customer to create a delivery for
+     * @param restaurant the delivery is from restaurant
+     * @param deliveryTime given time for delivery
+     * @param strategy how to pick the driver out of the available drivers
+     * @return new Delivery for customer, from restaurant, at deliveryTime, with the picked driver.
+     * @throws NoDriversAvailableException
+     * @throws CitiesDontMatchException
+     */
+    @Override
+    @Transactional
+    public Delivery createOrderAndAssignDriver(Customer customer, Restaurant restaurant, Date deliveryTime,
+                                               AssignmentStrategy strategy)
+            throws NoDriversAvailableException, CitiesDontMatchException {
+        Timer.Sample sample = Timer.start(this.meterRegistry);
+        Exception failure = null;
+        try {
+            return assignDriver(customer, restaurant, deliveryTime, strategy);
+        } catch (NoDriversAvailableException | CitiesDontMatchException | RuntimeException e) {
+            failure = e;
+            throw e;
+        } finally {
+            sample.stop(this.meterRegistry.timer("walt.order.create", "exception", exceptionTag(failure),
+                    "strategy", strategy.name()));
+        }
+    }
 
+    /**
+     * assign an available driver, picked by strategy, to a new delivery and save it
+     */
+    private Delivery assignDriver(Customer customer, Restaurant restaurant, Date deliveryTime,
+                                  AssignmentStrategy strategy)
+            throws NoDriversAvailableException, CitiesDontMatchException {
+
+        checkCitiesMatch(customer, restaurant);
+        //reject at once if the city surely has no room, without loading its drivers
+        if (!this.cityCapacityTable.hasCapacity(customer.getCity(), deliveryTime, Delivery.DEFAULT_DURATION_MINUTES)) {
+            throw noDriversAvailable(customer.getCity(), deliveryTime, Delivery.DEFAULT_DURATION_MINUTES);
+        }
+
+        //only the drivers the city's slot bitmaps leave are looked up in their schedules
+        Set<Long> freeDrivers = this.cityCapacityTable.freeDrivers(customer.getCity(), deliveryTime,
+                Delivery.DEFAULT_DURATION_MINUTES);
         List<Driver> availableDrivers = new ArrayList<>();
         List<Driver> driverArr = this.driverRepository.findAllDriversByCity(customer.getCity());
         for (Driver driver : driverArr) {
 
-            if (isDriverAvailable(driver, deliveryTime)) {
+            if (freeDrivers.contains(driver.getId())
+                    && isDriverAvailable(driver, deliveryTime, Delivery.DEFAULT_DURATION_MINUTES)) {
                 availableDrivers.add(driver);
             }
         }
-        if (availableDrivers.isEmpty()) {
-            throw new NoDriversAvailableException();
+
+        //reserve the picked driver, a driver that was booked by a concurrent order meanwhile is skipped
+        Driver pickedDriver = selectDriver(availableDrivers, restaurant, strategy);
+        while (pickedDriver != null && !this.driverScheduleIndex.tryBook(pickedDriver, deliveryTime,
+                Delivery.DEFAULT_DURATION_MINUTES)) {
+            availableDrivers.remove(pickedDriver);
+            pickedDriver = selectDriver(availableDrivers, restaurant, strategy);
+        }
+        if (pickedDriver == null) {
+            throw noDriversAvailable(customer.getCity(), deliveryTime, Delivery.DEFAULT_DURATION_MINUTES);
         }
+        Delivery newDelivery = new Delivery(pickedDriver, restaurant, customer, deliveryTime);
+        newDelivery.setDistance(this.distanceCalculator.getDistance(restaurant, customer));
+        releaseDriversOnRollback(Collections.singletonList(newDelivery));
 
-        Driver leastBusyDriver = getLeastBusyDriver(availableDrivers);
-        Delivery newDelivery = new Delivery(leastBusyDriver, restaurant, customer, deliveryTime);
-        int random = getRandom();
-        newDelivery.setDistance(random);
+        if (customer.getId() == null) { //new customer
+            this.customerRepository.save(customer);
+        }
+        Delivery saved = this.deliveryRepository.save(newDelivery);
+        this.outboxEventRepository.save(new OutboxEvent(saved));
+        return saved;
+    }
 
-        return newDelivery;
+    /**
+     * createOrdersAndAssignDrivers - create deliveries for a batch of orders.
+     * orders from the same restaurant, at about the same time and to nearby customers are bundled into a route
+     * carried by a single driver (see OrderBundler).
+     * bundles are grouped by city and pickup time, the drivers of each city are loaded once and every group
+     * is assigned in one pass, the least busy drivers first (counting the orders already assigned in this batch).
+     * all deliveries are saved together, nothing is saved if one of the orders can't be assigned.
+     * the routes are planned before the transaction starts, so planning holds no database connection.
+     * a batch is never forwarded, all its cities must be owned by this node (see ClusterRouter) - another node
+     * assigning them would book drivers the owner doesn't know are busy.
+     * @param orders orders to create deliveries for
+     * @return new deliveries, in the same order as orders
+     * @throws NoDriversAvailableException if the drivers of a city can't take all its orders at some time
+     * @throws CitiesDontMatchException if any customer orders from a restaurant in a different city
+     * @throws CityNotOwnedException if any order is for a city another node owns
+     */
+    @Override
+    public List<Delivery> createOrdersAndAssignDrivers(List<OrderRequest> orders)
+            throws NoDriversAvailableException, CitiesDontMatchException {
+        Timer.Sample sample = Timer.start(this.meterRegistry);
+        Exception failure = null;
+        try {
+            for (OrderRequest order : orders) {
+                checkCitiesMatch(order.getCustomer(), order.getRestaurant());
+                if (!this.clusterRouter.isLocal(order.getCustomer().getCity().getId())) {
+                    throw new CityNotOwnedException(order.getCustomer().getCity().getId());
+                }
+            }
+            //orders one driver can carry along a single route, all the orders of a bundle are from the same restaurant
+            List<List<Integer>> bundles = this.orderBundler.bundle(orders);
+            //the orders of each bundle in visiting order
+            List<List<Integer>> routes = planRoutes(orders, bundles);
+            try {
+                return this.transactionTemplate.execute(status -> {
+                    try {
+                        return assignDrivers(orders, bundles, routes);
+                    } catch (NoDriversAvailableException e) {
+                        throw new AssignmentFailure(e);
+                    }
+                });
+            } catch (AssignmentFailure e) {
+                throw (NoDriversAvailableException) e.getCause();
+            }
+        } catch (NoDriversAvailableException | CitiesDontMatchException | RuntimeException e) {
+            failure = e;
+            throw e;
+        } finally {
+            sample.stop(this.meterRegistry.timer("walt.orders.create.batch", "exception", exceptionTag(failure)));
+        }
     }
 
     /**
-     * @param drivers list of available drivers
-     * @return least busy driver from all available drivers
+     * assign drivers to all the orders of a batch and save their deliveries, inside the transaction
+     * @param bundles the indexes of the orders of each bundle
+     * @param routes the indexes of the orders of each bundle in visiting order
      */
-    private Driver getLeastBusyDriver(List<Driver> drivers) {
-        Map<Long, Integer> business = new HashMap<>(); //business maps driver's ID (Long) to the number of
-                                                        // deliveries this driver has(Integer).
+    private List<Delivery> assignDrivers(List<OrderRequest> orders, List<List<Integer>> bundles,
+                                         List<List<Integer>> routes) throws NoDriversAvailableException {
+        //groups maps city ID to pickup time to the indexes of the bundles in that city and time
+        Map<Long, Map<Long, List<Integer>>> groups = new HashMap<>();
+        for (int i = 0; i < bundles.size(); i++) {
+            OrderRequest first = orders.get(bundles.get(i).get(0));
+            groups.computeIfAbsent(first.getCustomer().getCity().getId(), id -> new TreeMap<>())
+                    .computeIfAbsent(first.getDeliveryTime().getTime(), time -> new ArrayList<>())
+                    .add(i);
+        }
 
-        for (Driver driver : drivers) {
-            business.put(driver.getId(), 0); //sets the initial number of deliveries to 0
+        Delivery[] deliveries = new Delivery[orders.size()];
+        try {
+            assignGroups(orders, bundles, routes, groups, deliveries);
+        } catch (NoDriversAvailableException e) {
+            releaseDrivers(Arrays.asList(deliveries));
+            throw e;
         }
+        List<Delivery> result = Arrays.asList(deliveries);
+        releaseDriversOnRollback(result);
 
-        for (Delivery delivery : this.deliveryRepository.findAll()) {
-            if (business.containsKey(delivery.getDriver().getId())) { //update the number of deliveries for this driver
-                business.put(delivery.getDriver().getId(), business.get(delivery.getDriver().getId()) + 1);
+        for (OrderRequest order : orders) {
+            if (order.getCustomer().getId() == null) { //new customer
+                this.customerRepository.save(order.getCustomer());
             }
         }
-
-        //get the the driver id with the lowest number of deliveries
-        Long leastBusyDriverID = GetDriverIdWithMinDeliveries(business);
-        if (this.driverRepository.findById(leastBusyDriverID).isPresent()) {
-            return this.driverRepository.findById(leastBusyDriverID).get();
+        List<DeliveryBundle> newBundles = new ArrayList<>();
+        for (Delivery delivery : result) {
+            if (delivery.getBundle() != null && delivery.isFirstStop()) {
+                newBundles.add(delivery.getBundle());
+            }
         }
-        return null;
+        this.deliveryBundleRepository.saveAll(newBundles);
+        this.deliveryRepository.saveAll(result);
+        List<OutboxEvent> events = new ArrayList<>(result.size());
+        for (Delivery delivery : result) {
+            events.add(new OutboxEvent(delivery));
+        }
+        this.outboxEventRepository.saveAll(events);
+        return result;
     }
 
     /**
-     * iterate over the business map and find the driver id with the lowest number of deliveries
-     * @param business maps driver ID to his number of deliveries
-     * @return least Busy Driver ID
+     * assign a driver to every bundle of every group, the least busy drivers first.
+     * a group goes round the available drivers, so a driver gets a second bundle of the group only if all the
+     * others are full
+     * @param orders all the orders of the batch
+     * @param bundles the indexes of the orders of each bundle
+     * @param routes the indexes of the orders of each bundle in visiting order
+     * @param groups maps city ID to pickup time to the indexes of the bundles in that city and time
+     * @param deliveries filled with the new delivery of each order
+     * @throws NoDriversAvailableException if a group has more bundles than its available drivers can take
      */
-    private Long GetDriverIdWithMinDeliveries(Map<Long, Integer> business) {
-        Long leastBusyDriverID = null;
-        for (Map.Entry<Long, Integer> entry : business.entrySet()) {
-            if (leastBusyDriverID == null) leastBusyDriverID = entry.getKey();
-            else {
-                if (entry.getValue() < business.get(leastBusyDriverID)) {
-                    leastBusyDriverID = entry.getKey();
+    private void assignGroups(List<OrderRequest> orders, List<List<Integer>> bundles, List<List<Integer>> routes,
+                              Map<Long, Map<Long, List<Integer>>> groups, Delivery[] deliveries)
+            throws NoDriversAvailableException {
+        Map<Long, Long> batchLoad = new HashMap<>(); //number of deliveries each driver got in this batch
+        for (Map<Long, List<Integer>> cityGroups : groups.values()) {
+            List<Driver> cityDrivers = null;
+            for (List<Integer> group : cityGroups.values()) {
+                OrderRequest first = orders.get(bundles.get(group.get(0)).get(0));
+                City city = first.getCustomer().getCity();
+                if (!this.cityCapacityTable.hasCapacity(city, first.getDeliveryTime(), first.getDurationMinutes())) {
+                    throw noDriversAvailable(city, first.getDeliveryTime(), first.getDurationMinutes());
+                }
+                if (cityDrivers == null) {
+                    cityDrivers = this.driverRepository.findAllDriversByCity(first.getCustomer().getCity());
+                }
+                Set<Long> freeDrivers = this.cityCapacityTable.freeDrivers(city, first.getDeliveryTime(),
+                        first.getDurationMinutes());
+                List<Driver> availableDrivers = new ArrayList<>();
+                int capacity = 0;
+                for (Driver driver : cityDrivers) {
+                    if (freeDrivers.contains(driver.getId())
+                            && isDriverAvailable(driver, first.getDeliveryTime(), first.getDurationMinutes())) {
+                        availableDrivers.add(driver);
+                        capacity += driver.getMaxConcurrentOrders();
+                    }
+                }
+                if (capacity < group.size()) {
+                    throw noDriversAvailable(city, first.getDeliveryTime(), first.getDurationMinutes());
+                }
+                availableDrivers.sort(Comparator.comparingLong(driver ->
+                        this.driverLoadIndex.getDeliveryCount(driver) + batchLoad.getOrDefault(driver.getId(), 0L)));
+
+                int next = 0;
+                for (Integer bundleIndex : group) {
+                    List<Integer> bundle = bundles.get(bundleIndex);
+                    OrderRequest order = orders.get(bundle.get(0));
+                    int durationMinutes = routeMinutes(orders, bundle);
+                    Driver driver = null;
+                    while (driver == null && !availableDrivers.isEmpty()) {
+                        next %= availableDrivers.size();
+                        Driver candidate = availableDrivers.get(next);
+                        if (this.driverScheduleIndex.tryBook(candidate, order.getDeliveryTime(), durationMinutes)) {
+                            driver = candidate;
+                            next++;
+                        } else { //full, or booked by concurrent orders meanwhile
+                            availableDrivers.remove(next);
+                        }
+                    }
+                    if (driver == null) {
+                        throw noDriversAvailable(city, order.getDeliveryTime(), durationMinutes);
+                    }
+                    batchLoad.merge(driver.getId(), (long) bundle.size(), Long::sum);
+                    if (bundle.size() == 1) {
+                        Delivery newDelivery = new Delivery(driver, order.getRestaurant(), order.getCustomer(),
+                                order.getDeliveryTime(), order.getDurationMinutes());
+                        newDelivery.setDistance(this.distanceCalculator.getDistance(order.getRestaurant(),
+                                order.getCustomer()));
+                        deliveries[bundle.get(0)] = newDelivery;
+                    } else {
+                        createRoute(driver, orders, routes.get(bundleIndex), order.getDeliveryTime(), durationMinutes,
+                                deliveries);
+                    }
                 }
             }
         }
-        return leastBusyDriverID;
     }
 
     /**
-     * isDriverAvailable - checks if a driver is available for a delivery at a given time.
-     * going over all other deliveries and check if this driver has already been booked for a different delivery.
-     * @param driver check if the given driver is available
-     * @param deliveryTime wanted time for the delivery
-     * @return true - if the driver is available at deliveryTime, false otherwise.
-     */
-    private boolean isDriverAvailable(Driver driver, Date deliveryTime) {
-        Iterable<Delivery> allDeliveries = this.deliveryRepository.findAll();
-        for (Delivery delivery : allDeliveries) {
-            if (delivery.getDriver().getId().equals(driver.getId())
-                    && (delivery.getDeliveryTime().getTime() ==  deliveryTime.getTime())) {
-                return false; //the driver is booked for a different delivery at deliveryTime
+     * @return minutes from the pickup of the bundle (its earliest order) to the end of its latest order
+     */
+    private static int routeMinutes(List<OrderRequest> orders, List<Integer> bundle) {
+        long start = orders.get(bundle.get(0)).getDeliveryTime().getTime();
+        long end = start;
+        for (Integer index : bundle) {
+            OrderRequest order = orders.get(index);
+            end = Math.max(end, order.getDeliveryTime().getTime()
+                    + TimeUnit.MINUTES.toMillis(order.getDurationMinutes()));
+        }
+        return (int) TimeUnit.MILLISECONDS.toMinutes(end - start + TimeUnit.MINUTES.toMillis(1) - 1);
+    }
+
+    /**
+     * order the stops of every bundle so its route is as short as the route planner finds in its time budget.
+     * a bundle whose restaurant has no location, not even by its city, keeps the order of its pickup times
+     * @return the indexes of the orders of each bundle in visiting order
+     */
+    private List<List<Integer>> planRoutes(List<OrderRequest> orders, List<List<Integer>> bundles) {
+        List<Integer> planned = new ArrayList<>(); //indexes of the bundles sent to the planner
+        List<RouteStops> stops = new ArrayList<>();
+        for (int i = 0; i < bundles.size(); i++) {
+            List<Integer> bundle = bundles.get(i);
+            Restaurant restaurant = orders.get(bundle.get(0)).getRestaurant();
+            Double latitude = restaurant.getLatitude() != null ? restaurant.getLatitude()
+                    : restaurant.getCity().getLatitude();
+            Double longitude = restaurant.getLongitude() != null ? restaurant.getLongitude()
+                    : restaurant.getCity().getLongitude();
+            if (bundle.size() < 2 || latitude == null || longitude == null) {
+                continue;
             }
+            double[] latitudes = new double[bundle.size() + 1];
+            double[] longitudes = new double[bundle.size() + 1];
+            latitudes[0] = latitude;
+            longitudes[0] = longitude;
+            for (int stop = 0; stop < bundle.size(); stop++) { //bundled customers always have coordinates
+                Customer customer = orders.get(bundle.get(stop)).getCustomer();
+                latitudes[stop + 1] = customer.getLatitude();
+                longitudes[stop + 1] = customer.getLongitude();
+            }
+            planned.add(i);
+            stops.add(new RouteStops(latitudes, longitudes));
         }
-        return true;
+
+        List<List<Integer>> routes = new ArrayList<>(bundles);
+        List<int[]> visits = this.routePlanner.plan(stops);
+        for (int i = 0; i < planned.size(); i++) {
+            List<Integer> bundle = bundles.get(planned.get(i));
+            List<Integer> route = new ArrayList<>(bundle.size());
+            for (int stop : visits.get(i)) {
+                route.add(bundle.get(stop - 1));
+            }
+            routes.set(planned.get(i), route);
+        }
+        return routes;
     }
 
     /**
-     * getDriverRankReport - create a List of DriverDistance (reportList), iterate over all deliveries
-     * and update the total distance of each driver in reportList, according to the distance of the delivery.
-     * sort DriverDistance objects in reportList by their totalDistance
-     * @return reportList
+     * create the deliveries of a bundle picked up by driver, each one at its own time and with the distance of its
+     * leg. the bundle holds the pickup time and the duration of the whole route, which the driver is booked for
+     * @param route the indexes of the orders of the bundle in visiting order
      */
-    @Override
-    public List<DriverDistance> getDriverRankReport() {
+    private void createRoute(Driver driver, List<OrderRequest> orders, List<Integer> route, Date pickupTime,
+                             int durationMinutes, Delivery[] deliveries) {
+        Restaurant restaurant = orders.get(route.get(0)).getRestaurant();
+        DeliveryBundle bundle = new DeliveryBundle(driver, restaurant, pickupTime, durationMinutes, route.size());
+        double routeDistance = 0;
+        Customer previous = null;
+        for (int stop = 0; stop < route.size(); stop++) {
+            OrderRequest order = orders.get(route.get(stop));
+            Delivery newDelivery = new Delivery(driver, restaurant, order.getCustomer(), order.getDeliveryTime(),
+                    order.getDurationMinutes());
+            newDelivery.setBundle(bundle, stop);
+            //bundled customers always have coordinates
+            newDelivery.setDistance(previous == null
+                    ? this.distanceCalculator.getDistance(restaurant, order.getCustomer())
+                    : DistanceCalculator.haversine(previous.getLatitude(), previous.getLongitude(),
+                    order.getCustomer().getLatitude(), order.getCustomer().getLongitude()));
+            routeDistance += newDelivery.getDistance();
+            previous = order.getCustomer();
+            deliveries[route.get(stop)] = newDelivery;
+        }
+        bundle.setDistance(routeDistance);
+    }
 
-        List<DriverDistance> reportList = new ArrayList<>();
-        Iterable<Driver> drivers = this.driverRepository.findAll();
-        for (Driver driver : drivers) {
-            reportList.add(new DriverDistanceImpl(driver, 0L));
-        }
-        for (Delivery delivery : this.deliveryRepository.findAll()) {
-            Driver driver = delivery.getDriver();
-            for (DriverDistance dd: reportList)
-            {
-                if (driver.getId().equals(dd.getDriver().getId()))
-                {
-                    dd.setTotalDistance(dd.getTotalDistance() + Math.round(delivery.getDistance()));
-                    break;
+    /**
+     * cancel the driver reservations of deliveries that are not going to be saved
+     * @param deliveries deliveries with reserved drivers, null elements are skipped.
+     *                   a bundle is reserved by its first stop only
+     */
+    private void releaseDrivers(List<Delivery> deliveries) {
+        for (Delivery delivery : deliveries) {
+            if (delivery != null && delivery.isFirstStop()) {
+                this.driverScheduleIndex.release(delivery.getDriver(), delivery.getBookedTime(),
+                        delivery.getBookedMinutes());
+            }
+        }
+    }
+
+    /**
+     * cancel the driver reservations of the deliveries if the current transaction rolls back
+     * @param deliveries deliveries with reserved drivers
+     */
+    private void releaseDriversOnRollback(List<Delivery> deliveries) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCompletion(int status) {
+                if (status != STATUS_COMMITTED) {
+                    releaseDrivers(deliveries);
                 }
             }
+        });
+    }
 
+    /**
+     * @param failure exception thrown by a write operation, null if it succeeded
+     * @return value of the exception tag of the write path timers
+     */
+    private static String exceptionTag(Exception failure) {
+        return failure == null ? "none" : failure.getClass().getSimpleName();
+    }
+
+    /**
+     * @param customer customer that orders
+     * @param restaurant restaurant the customer orders from
+     * @throws CitiesDontMatchException if the customer and the restaurant are not in the same city
+     */
+    private void checkCitiesMatch(Customer customer, Restaurant restaurant) throws CitiesDontMatchException {
+        if (!customer.getCity().getId().equals(restaurant.getCity().getId())) {
+            throw new CitiesDontMatchException();
+        }
+    }
+
+    /**
+     * updateDriverLocation - save the last known position of a driver, used by the NEAREST and WEIGHTED strategies
+     * @param driver driver that moved
+     * @param latitude latitude of the driver's position
+     * @param longitude longitude of the driver's position
+     */
+    @Override
+    @Transactional
+    public void updateDriverLocation(Driver driver, double latitude, double longitude) {
+        DriverLocation location = this.driverLocationRepository.save(
+                new DriverLocation(driver.getId(), latitude, longitude));
+        this.driverLocationIndex.update(driver, location);
+    }
+
+    /**
+     * pick a driver by strategy. drivers without a known position are only picked by LEAST_BUSY, which is also
+     * the fallback when the restaurant has no coordinates or none of the drivers has a known position.
+     * @param drivers list of available drivers
+     * @param restaurant the delivery is from restaurant
+     * @param strategy how to pick the driver
+     * @return the picked driver, null if drivers is empty
+     */
+    private Driver selectDriver(List<Driver> drivers, Restaurant restaurant, AssignmentStrategy strategy) {
+        Double latitude = restaurant.getLatitude() != null ? restaurant.getLatitude()
+                : restaurant.getCity().getLatitude();
+        Double longitude = restaurant.getLongitude() != null ? restaurant.getLongitude()
+                : restaurant.getCity().getLongitude();
+        if (strategy == AssignmentStrategy.LEAST_BUSY || drivers.isEmpty() || latitude == null || longitude == null) {
+            return getLeastBusyDriver(drivers);
+        }
+
+        Map<Long, Driver> driversById = new HashMap<>();
+        for (Driver driver : drivers) {
+            driversById.put(driver.getId(), driver);
+        }
+        int k = strategy == AssignmentStrategy.NEAREST ? 1 : this.nearestCandidates;
+        List<Long> nearest = this.driverLocationIndex.findNearest(restaurant.getCity(), latitude, longitude, k,
+                driversById.keySet());
+        if (nearest.isEmpty()) {
+            return getLeastBusyDriver(drivers);
         }
+        if (strategy == AssignmentStrategy.NEAREST) {
+            return driversById.get(nearest.get(0));
+        }
+
+        //WEIGHTED - the lowest distance to the restaurant plus a penalty of kmPerDelivery for every delivery
+        Driver pickedDriver = null;
+        double bestScore = Double.MAX_VALUE;
+        for (Long driverId : nearest) {
+            Driver driver = driversById.get(driverId);
+            Double distance = this.driverLocationIndex.getDistance(driverId, latitude, longitude);
+            if (distance == null) {
+                continue; //position was removed after it was found
+            }
+            double score = distance + this.kmPerDelivery * this.driverLoadIndex.getDeliveryCount(driver);
+            if (score < bestScore) {
+                bestScore = score;
+                pickedDriver = driver;
+            }
+        }
+        return pickedDriver != null ? pickedDriver : getLeastBusyDriver(drivers);
+    }
 
-        Collections.sort(reportList, new SortByDistance());
-        return reportList;
+    /**
+     * @param drivers list of available drivers
+     * @return least busy driver from all available drivers, according to the delivery counters
+     */
+    private Driver getLeastBusyDriver(List<Driver> drivers) {
+        return this.driverLoadIndex.getLeastBusy(drivers);
+    }
+
+    /**
+     * isDriverAvailable - checks if a driver is available for a delivery in a given time window.
+     * looks the driver up in the schedule index instead of going over all other deliveries.
+     * @param driver check if the given driver is available
+     * @param deliveryTime wanted time for the delivery
+     * @param durationMinutes duration of the delivery
+     * @return true - if the window is in the driver's shift and the driver can take another delivery all through it,
+     * false otherwise.
+     */
+    private boolean isDriverAvailable(Driver driver, Date deliveryTime, int durationMinutes) {
+        return driver.isOnShift(deliveryTime, durationMinutes)
+                && this.driverScheduleIndex.isAvailable(driver, deliveryTime, durationMinutes);
+    }
+
+    /**
+     * @return the exception for a delivery nobody can take, with the next slot the city has room in
+     */
+    private NoDriversAvailableException noDriversAvailable(City city, Date deliveryTime, int durationMinutes) {
+        return new NoDriversAvailableException(this.cityCapacityTable.nextAvailable(city, deliveryTime,
+                durationMinutes));
+    }
+
+    /**
+     * getDriverRankReport - all the drivers from the leaderboard, sorted by totalDistance in descending order
+     * @return reportList
+     */
+    @Override
+    public List<DriverDistance> getDriverRankReport() {
+        return getDriverRankReport(0, Integer.MAX_VALUE);
     }
 
 
     /**
-     * getDriverRankReport - create a List of DriverDistance with drivers from the given city(reportList),
-     * iterate over all deliveries and update the total distance of each driver in reportList,
-     * according to the distance of the delivery.
-     * sort DriverDistance objects in reportList by their totalDistance.
+     * getDriverRankReportByCity - same as getDriverRankReport, only for the drivers from the given city.
      * @param city
      * @return reportList
      */
     @Override
     public List<DriverDistance> getDriverRankReportByCity(City city) {
-        List<DriverDistance> reportList = new ArrayList<>();
-        Iterable<Driver> drivers = this.driverRepository.findAllDriversByCity(city);
-        for (Driver driver : drivers) {
-            reportList.add(new DriverDistanceImpl(driver, 0L));
-        }
-        for (Delivery delivery : this.deliveryRepository.findAll()) {
-            Driver driver = delivery.getDriver();
-            for (DriverDistance dd: reportList) //TODO BAD SEARCH
-            {
-                if (driver.getId().equals(dd.getDriver().getId()))
-                {
-                    dd.setTotalDistance(dd.getTotalDistance() + Math.round(delivery.getDistance())); //TODO ROUND
-                    break;
-                }
-            }
+        return getDriverRankReportByCity(city, 0, Integer.MAX_VALUE);
+    }
 
-        }
 
-        Collections.sort(reportList, new SortByDistance());
-        return reportList;
+    /**
+     * getDriverRankReport - a single page of the leaderboard
+     * @param offset number of top drivers to skip
+     * @param limit max number of drivers in the page
+     * @return reportList
+     */
+    @Override
+    public List<DriverDistance> getDriverRankReport(int offset, int limit) {
+        return this.driverLeaderboard.getRank(offset, limit);
+    }
+
+
+    /**
+     * getDriverRankReportByCity - a single page of the leaderboard of the given city
+     * @param city
+     * @param offset number of top drivers to skip
+     * @param limit max number of drivers in the page
+     * @return reportList
+     */
+    @Override
+    public List<DriverDistance> getDriverRankReportByCity(City city, int offset, int limit) {
+        return this.driverLeaderboard.getRankByCity(city, offset, limit);
+    }
 
+
+    /**
+     * getDriverRankReport - all the drivers ranked by the distance of their deliveries in a time range,
+     * summed from the hour and day buckets of each driver, a range edge in a day older than
+     * walt.report.hour-retention-days is widened to the whole day.
+     * @param from start of the range, widened to a whole hour
+     * @param to end of the range (exclusive), widened to a whole hour
+     * @return reportList
+     */
+    @Override
+    public List<DriverDistance> getDriverRankReport(Date from, Date to) {
+        return this.driverDistanceBuckets.getRank(null, from, to);
     }
 
 
     /**
-     * @return random number is between MIN_DIST to MAX_DIST
+     * getDriverRankReportByCity - same as getDriverRankReport(from, to), only for the drivers from the given city.
+     * @param city
+     * @param from start of the range, widened to a whole hour
+     * @param to end of the range (exclusive), widened to a whole hour
+     * @return reportList
      */
-    private int getRandom() {
-        Random r = new Random();
-        return r.nextInt(MAX_DIST - MIN_DIST) + MIN_DIST;
+    @Override
+    public List<DriverDistance> getDriverRankReportByCity(City city, Date from, Date to) {
+        return this.driverDistanceBuckets.getRank(city, from, to);
+    }
+
 
+    /**
+     * getTopDrivers - the leaders of getDriverRankReport(from, to), selected without sorting the whole report
+     * @param from start of the range, widened to a whole hour
+     * @param to end of the range (exclusive), widened to a whole hour
+     * @param k number of drivers to return
+     * @return up to k drivers, sorted by totalDistance in descending order
+     */
+    @Override
+    public List<DriverRank> getTopDrivers(Date from, Date to, int k) {
+        return this.driverDistanceBuckets.getTop(null, from, to, k);
+    }
+
+
+    /**
+     * getTopDriversByCity - same as getTopDrivers, only for the drivers from the given city.
+     * @param city
+     * @param from start of the range, widened to a whole hour
+     * @param to end of the range (exclusive), widened to a whole hour
+     * @param k number of drivers to return
+     * @return up to k drivers, sorted by totalDistance in descending order
+     */
+    @Override
+    public List<DriverRank> getTopDriversByCity(City city, Date from, Date to, int k) {
+        return this.driverDistanceBuckets.getTop(city, from, to, k);
+    }
+
+
+    /**
+     * streamDriverRankReport - same as getDriverRankReport, as a stream of compact rows for the export.
+     * the rows are copied from the leaderboard a chunk at a time, not re-aggregated from the deliveries
+     * @return report rows, sorted by totalDistance in descending order
+     */
+    @Override
+    public Stream<DriverRank> streamDriverRankReport() {
+        return this.driverLeaderboard.streamRank();
+    }
+
+
+    /**
+     * streamDriverRankReportByCity - same as getDriverRankReportByCity, as a stream for the export.
+     * @param city
+     * @return report rows, sorted by totalDistance in descending order
+     */
+    @Override
+    public Stream<DriverRank> streamDriverRankReportByCity(City city) {
+        return this.driverLeaderboard.streamRankByCity(city);
+    }
+
+    /**
+     * carries the NoDriversAvailableException of assignDrivers out of the transaction, rolling it back
+     */
+    private static final class AssignmentFailure extends RuntimeException {
+        private AssignmentFailure(NoDriversAvailableException cause) {
+            super(cause);
+        }
     }
 }
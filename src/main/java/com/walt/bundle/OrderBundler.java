@@ -0,0 +1,87 @@
+package com.walt.bundle;
+
+import com.walt.distance.DistanceCalculator;
+import com.walt.model.Customer;
+import com.walt.model.OrderRequest;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Groups the orders of a batch that one driver can carry along a single route - orders from the same restaurant,
+ * wanted within window-minutes of the first order of the group, whose customers are within max-km of the first
+ * customer of the group. customers without coordinates are never bundled, as their proximity is unknown.
+ */
+@Component
+public class OrderBundler {
+
+    @Value("${walt.bundle.window-minutes:10}")
+    private int windowMinutes;
+
+    /**
+     * max number of orders in a bundle, 1 turns bundling off
+     */
+    @Value("${walt.bundle.max-stops:4}")
+    private int maxStops;
+
+    @Value("${walt.bundle.max-km:2.0}")
+    private double maxKm;
+
+    /**
+     * @param orders orders of a batch
+     * @return the indexes of the orders of every bundle, in order of delivery time. every order is in exactly one
+     * bundle, an order that can't be bundled is a bundle of its own
+     */
+    public List<List<Integer>> bundle(List<OrderRequest> orders) {
+        Map<Object, List<Integer>> byRestaurant = new LinkedHashMap<>();
+        for (int i = 0; i < orders.size(); i++) {
+            Long restaurantId = orders.get(i).getRestaurant().getId();
+            //a restaurant that isn't saved can't be told apart from other ones, its orders aren't bundled
+            byRestaurant.computeIfAbsent(restaurantId != null ? restaurantId : new Object(), id -> new ArrayList<>())
+                    .add(i);
+        }
+
+        long window = TimeUnit.MINUTES.toMillis(this.windowMinutes);
+        List<List<Integer>> bundles = new ArrayList<>();
+        for (List<Integer> restaurantOrders : byRestaurant.values()) {
+            restaurantOrders.sort(Comparator.comparingLong(i -> orders.get(i).getDeliveryTime().getTime()));
+            boolean[] bundled = new boolean[restaurantOrders.size()];
+            for (int first = 0; first < restaurantOrders.size(); first++) {
+                if (bundled[first]) {
+                    continue;
+                }
+                OrderRequest seed = orders.get(restaurantOrders.get(first));
+                List<Integer> bundle = new ArrayList<>();
+                bundle.add(restaurantOrders.get(first));
+                for (int next = first + 1; next < restaurantOrders.size() && bundle.size() < this.maxStops
+                        && hasLocation(seed.getCustomer()); next++) {
+                    OrderRequest candidate = orders.get(restaurantOrders.get(next));
+                    if (candidate.getDeliveryTime().getTime() - seed.getDeliveryTime().getTime() > window) {
+                        break;
+                    }
+                    if (!bundled[next] && isNear(seed.getCustomer(), candidate.getCustomer())) {
+                        bundled[next] = true;
+                        bundle.add(restaurantOrders.get(next));
+                    }
+                }
+                bundles.add(bundle);
+            }
+        }
+        return bundles;
+    }
+
+    private boolean isNear(Customer a, Customer b) {
+        return hasLocation(b) && DistanceCalculator.haversine(a.getLatitude(), a.getLongitude(),
+                b.getLatitude(), b.getLongitude()) <= this.maxKm;
+    }
+
+    private static boolean hasLocation(Customer customer) {
+        return customer.getLatitude() != null && customer.getLongitude() != null;
+    }
+}
@@ -0,0 +1,22 @@
+package com.walt.cluster;
+
+import java.util.Collection;
+
+/**
+ * Decides which node owns a city. only the owner of a city assigns its drivers, so the in-memory driver state of
+ * a city is kept by a single node.
+ * the default is ConsistentHashPartitioner, a @Primary CityPartitioner bean replaces it.
+ */
+public interface CityPartitioner {
+
+    /**
+     * @param nodeIds IDs of all the nodes in the cluster
+     */
+    void setNodes(Collection<String> nodeIds);
+
+    /**
+     * @param cityId city to look up
+     * @return ID of the node that owns the city, null if there are no nodes
+     */
+    String ownerOf(Long cityId);
+}
@@ -0,0 +1,241 @@
+package com.walt.cluster;
+
+import com.walt.dao.CityRepository;
+import com.walt.dao.DeliveryRepository;
+import com.walt.dao.DriverRepository;
+import com.walt.index.DeliveryIndexLoader;
+import com.walt.index.DeliveryObserver;
+import com.walt.model.City;
+import com.walt.model.Delivery;
+import com.walt.model.Driver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.DefaultResponseErrorHandler;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.web.server.ResponseStatusException;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Routes the orders of a city to the node that owns it.
+ * the nodes are given as walt.cluster.nodes=id=baseUrl,id=baseUrl and this node's ID as walt.cluster.node-id,
+ * without nodes every city is local. when the nodes change, every DeliveryObserver reloads the drivers of the
+ * cities this node gains from the repository, since until then their deliveries were made by another node.
+ * an order whose owner has no address or can't be reached in time is answered with 503.
+ */
+@Component
+public class ClusterRouter {
+
+    private static final Logger log = LoggerFactory.getLogger(ClusterRouter.class);
+
+    /**
+     * marks a forwarded request, the receiving node handles it even if it thinks another node owns the city -
+     * requests never bounce between nodes that disagree on the owner
+     */
+    public static final String FORWARDED_HEADER = "X-Walt-Forwarded";
+
+    @Autowired
+    private CityPartitioner cityPartitioner;
+
+    @Autowired
+    private CityRepository cityRepository;
+
+    @Autowired
+    private DriverRepository driverRepository;
+
+    @Autowired
+    private DeliveryRepository deliveryRepository;
+
+    @Autowired
+    private List<DeliveryObserver> observers;
+
+    @Autowired
+    private DeliveryIndexLoader deliveryIndexLoader;
+
+    @Value("${walt.cluster.node-id:local}")
+    private String nodeId;
+
+    @Value("${walt.cluster.nodes:}")
+    private String configuredNodes;
+
+    @Value("${walt.cluster.forward-threads:16}")
+    private int forwardThreads;
+
+    @Value("${walt.cluster.connect-timeout-ms:1000}")
+    private int connectTimeoutMs;
+
+    @Value("${walt.cluster.read-timeout-ms:10000}")
+    private int readTimeoutMs;
+
+    /**
+     * maps node's ID to the node's base URL
+     */
+    private volatile Map<String, String> nodes = Collections.emptyMap();
+
+    private RestTemplate restTemplate;
+
+    private ExecutorService forwardExecutor;
+
+    @PostConstruct
+    public void start() {
+        SimpleClientHttpRequestFactory requestFactory = new SimpleClientHttpRequestFactory();
+        requestFactory.setConnectTimeout(this.connectTimeoutMs);
+        requestFactory.setReadTimeout(this.readTimeoutMs);
+        this.restTemplate = new RestTemplate(requestFactory);
+        //the owner's response is relayed as is, errors included
+        this.restTemplate.setErrorHandler(new DefaultResponseErrorHandler() {
+            @Override
+            public boolean hasError(ClientHttpResponse response) {
+                return false;
+            }
+        });
+        this.forwardExecutor = Executors.newFixedThreadPool(this.forwardThreads);
+        Map<String, String> parsed = new LinkedHashMap<>();
+        for (String node : this.configuredNodes.split(",")) {
+            String[] idAndUrl = node.trim().split("=", 2);
+            if (idAndUrl.length == 2) {
+                parsed.put(idAndUrl[0].trim(), idAndUrl[1].trim());
+            }
+        }
+        this.nodes = parsed;
+        this.cityPartitioner.setNodes(parsed.keySet());
+    }
+
+    @PreDestroy
+    public void stop() {
+        this.forwardExecutor.shutdownNow();
+    }
+
+    public String getNodeId() {
+        return this.nodeId;
+    }
+
+    /**
+     * @param cityId city to check
+     * @return true if this node owns the city
+     */
+    public boolean isLocal(Long cityId) {
+        String owner = this.cityPartitioner.ownerOf(cityId);
+        return owner == null || owner.equals(this.nodeId);
+    }
+
+    /**
+     * change the nodes of the cluster, reloading the state of the cities this node gains
+     * @param nodes maps node's ID to the node's base URL
+     */
+    public synchronized void setNodes(Map<String, String> nodes) {
+        List<City> cities = new ArrayList<>();
+        this.cityRepository.findAll().forEach(cities::add);
+        Set<Long> wasLocal = new HashSet<>();
+        for (City city : cities) {
+            if (isLocal(city.getId())) {
+                wasLocal.add(city.getId());
+            }
+        }
+
+        this.nodes = new LinkedHashMap<>(nodes);
+        this.cityPartitioner.setNodes(nodes.keySet());
+
+        List<City> gained = new ArrayList<>();
+        for (City city : cities) {
+            if (!wasLocal.contains(city.getId()) && isLocal(city.getId())) {
+                gained.add(city);
+            }
+        }
+        if (!gained.isEmpty()) {
+            loadCities(gained);
+        }
+    }
+
+    /**
+     * send a request to the owner of a city and relay its response
+     * @param cityId city of the request
+     * @param path path of the request on the owner
+     * @param body JSON body of the request
+     * @return the owner's response, or completes exceptionally with 503 if the owner has no address or can't
+     * be reached
+     */
+    public CompletableFuture<ResponseEntity<?>> forward(Long cityId, String path, Object body) {
+        String owner = this.cityPartitioner.ownerOf(cityId);
+        String baseUrl = this.nodes.get(owner);
+        if (baseUrl == null) {
+            CompletableFuture<ResponseEntity<?>> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE,
+                    "no address for node " + owner));
+            return failed;
+        }
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_JSON);
+        headers.set(FORWARDED_HEADER, this.nodeId);
+        HttpEntity<Object> request = new HttpEntity<>(body, headers);
+        return CompletableFuture.<ResponseEntity<?>>supplyAsync(() -> {
+            ResponseEntity<String> response;
+            try {
+                response = this.restTemplate.exchange(baseUrl + path, HttpMethod.POST, request, String.class);
+            } catch (ResourceAccessException e) {
+                throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "node " + owner + " is unreachable",
+                        e);
+            }
+            //only the status, type and body - the owner's transfer headers don't apply to this response
+            return ResponseEntity.status(response.getStatusCode())
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .body(response.getBody());
+        }, this.forwardExecutor);
+    }
+
+    /**
+     * rebuild every observer for the drivers of the given cities from the repository, through the loader so
+     * deliveries these drivers commit meanwhile are kept
+     */
+    private void loadCities(List<City> cities) {
+        Set<Long> cityIds = new HashSet<>();
+        List<Driver> drivers = new ArrayList<>();
+        Set<Long> driverIds = new HashSet<>();
+        for (City city : cities) {
+            cityIds.add(city.getId());
+            for (Driver driver : this.driverRepository.findAllDriversByCity(city)) {
+                drivers.add(driver);
+                driverIds.add(driver.getId());
+            }
+        }
+        List<Delivery> deliveries = this.deliveryIndexLoader.reload(
+                () -> this.deliveryRepository.findByDriverIdIn(driverIds),
+                read -> {
+                    for (DeliveryObserver observer : this.observers) {
+                        observer.rebuildDrivers(drivers, read);
+                    }
+                },
+                delivery -> {
+                    if (driverIds.contains(delivery.getDriver().getId())) {
+                        for (DeliveryObserver observer : this.observers) {
+                            observer.onDeliveryCreated(delivery);
+                        }
+                    }
+                });
+        log.info("node {} took over cities {}, loaded {} deliveries of {} drivers", this.nodeId, cityIds,
+                deliveries.size(), driverIds.size());
+    }
+}
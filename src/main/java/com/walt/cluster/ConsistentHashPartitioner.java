@@ -0,0 +1,69 @@
+package com.walt.cluster;
+
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent hashing of cities onto nodes.
+ * every node is placed on a ring at VIRTUAL_NODES points, a city belongs to the first node point at or after the
+ * city's hash. when a node joins or leaves only the cities next to its points change owner.
+ */
+@Component
+public class ConsistentHashPartitioner implements CityPartitioner {
+
+    /**
+     * points per node, spreads the cities evenly between the nodes
+     */
+    private static final int VIRTUAL_NODES = 128;
+
+    private volatile TreeMap<Long, String> ring = new TreeMap<>();
+
+    @Override
+    public void setNodes(Collection<String> nodeIds) {
+        TreeMap<Long, String> rebuilt = new TreeMap<>();
+        for (String nodeId : nodeIds) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                rebuilt.put(hash(nodeId + "#" + i), nodeId);
+            }
+        }
+        this.ring = rebuilt;
+    }
+
+    @Override
+    public String ownerOf(Long cityId) {
+        TreeMap<Long, String> current = this.ring;
+        if (current.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Long, String> owner = current.ceilingEntry(mix(cityId));
+        return owner != null ? owner.getValue() : current.firstEntry().getValue();
+    }
+
+    /**
+     * FNV-1a of the string, finished with mix
+     */
+    private static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b;
+            hash *= 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    /**
+     * the 64 bit finalizer of MurmurHash3, spreads consecutive IDs over the ring
+     */
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+}
@@ -1,10 +1,14 @@
 package com.walt.dao;
 
 import com.walt.model.Customer;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.CrudRepository;
 import org.springframework.stereotype.Repository;
 
+import javax.persistence.QueryHint;
+
 @Repository
 public interface CustomerRepository extends CrudRepository<Customer, Long> {
+    @QueryHints(@QueryHint(name = "org.hibernate.cacheable", value = "true"))
     Customer findByName(String name);
 }
@@ -0,0 +1,9 @@
+package com.walt.dao;
+
+import com.walt.model.DeliveryBundle;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface DeliveryBundleRepository extends CrudRepository<DeliveryBundle, Long> {
+}
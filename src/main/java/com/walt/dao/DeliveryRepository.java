@@ -4,17 +4,44 @@ import com.walt.model.City;
 import com.walt.model.Driver;
 import com.walt.model.Delivery;
 import com.walt.model.DriverDistance;
+import org.springframework.data.jpa.repository.EntityGraph;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.CrudRepository;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.Optional;
 
 @Repository
 public interface DeliveryRepository extends CrudRepository<Delivery, Long> {
 
+    /**
+     * a delivery with its driver, for showing an assignment
+     */
+    @EntityGraph(attributePaths = "driver")
+    Optional<Delivery> findWithDriverById(Long id);
+
+    /**
+     * all the deliveries with their bundles, which hold the windows the bundled deliveries book their drivers for
+     */
+    @Query("SELECT del FROM Delivery del LEFT JOIN FETCH del.bundle")
+    List<Delivery> findAllWithBundle();
+
+    /**
+     * the deliveries after the given ID with their drivers and bundles, through the primary key
+     */
+    @EntityGraph(attributePaths = {"driver", "bundle"})
+    List<Delivery> findByIdGreaterThan(Long id);
+
+    /**
+     * all the deliveries of some drivers with their bundles, through the driver index
+     */
+    @EntityGraph(attributePaths = "bundle")
+    List<Delivery> findByDriverIdIn(Collection<Long> driverIds);
+
 }
 
 
@@ -1,10 +1,14 @@
 package com.walt.dao;
 
 import com.walt.model.Restaurant;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.CrudRepository;
 import org.springframework.stereotype.Repository;
 
+import javax.persistence.QueryHint;
+
 @Repository
 public interface RestaurantRepository extends CrudRepository<Restaurant, Long> {
+    @QueryHints(@QueryHint(name = "org.hibernate.cacheable", value = "true"))
     Restaurant findByName(String name);
 }
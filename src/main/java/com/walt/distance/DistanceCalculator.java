@@ -0,0 +1,73 @@
+package com.walt.distance;
+
+import com.walt.model.Customer;
+import com.walt.model.Restaurant;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Computes the distance of a delivery from the restaurant to the customer.
+ * the great-circle (haversine) distance is computed on primitive coordinates, a few trigonometric functions and
+ * no allocation - cheaper than looking a pair of locations up in a cache.
+ * a delivery without coordinates at all is given walt.distance.default-km.
+ */
+@Component
+public class DistanceCalculator {
+
+    /**
+     * mean radius of the earth in Km
+     */
+    private static final double EARTH_RADIUS_KM = 6371.0088;
+
+    /**
+     * distance of a delivery when neither side nor its city has coordinates
+     */
+    @Value("${walt.distance.default-km:10}")
+    private double defaultKm;
+
+    /**
+     * @param restaurant the delivery is from restaurant
+     * @param customer the delivery is to customer
+     * @return distance in Km from restaurant to customer. the city center is used for a side without coordinates,
+     * walt.distance.default-km if a side has no coordinates at all
+     */
+    public double getDistance(Restaurant restaurant, Customer customer) {
+        Double fromLatitude = restaurant.getLatitude() != null ? restaurant.getLatitude()
+                : restaurant.getCity().getLatitude();
+        Double fromLongitude = restaurant.getLongitude() != null ? restaurant.getLongitude()
+                : restaurant.getCity().getLongitude();
+        Double toLatitude = customer.getLatitude() != null ? customer.getLatitude()
+                : customer.getCity().getLatitude();
+        Double toLongitude = customer.getLongitude() != null ? customer.getLongitude()
+                : customer.getCity().getLongitude();
+        if (fromLatitude == null || fromLongitude == null || toLatitude == null || toLongitude == null) {
+            return this.defaultKm;
+        }
+        return haversine(fromLatitude, fromLongitude, toLatitude, toLongitude);
+    }
+
+    /**
+     * great-circle distance between two coordinates, in degrees
+     * @return distance in Km
+     */
+    public static double haversine(double fromLatitude, double fromLongitude, double toLatitude, double toLongitude) {
+        double deltaLatitude = Math.toRadians(toLatitude - fromLatitude);
+        double deltaLongitude = Math.toRadians(toLongitude - fromLongitude);
+        double sinLatitude = Math.sin(deltaLatitude / 2);
+        double sinLongitude = Math.sin(deltaLongitude / 2);
+        double a = sinLatitude * sinLatitude + Math.cos(Math.toRadians(fromLatitude))
+                * Math.cos(Math.toRadians(toLatitude)) * sinLongitude * sinLongitude;
+        return 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    /**
+     * haversine distances from a single point to many points, without allocating
+     * @param distances filled with the distance in Km to each of the points
+     */
+    public static void haversine(double fromLatitude, double fromLongitude, double[] toLatitudes,
+                                 double[] toLongitudes, double[] distances) {
+        for (int i = 0; i < distances.length; i++) {
+            distances[i] = haversine(fromLatitude, fromLongitude, toLatitudes[i], toLongitudes[i]);
+        }
+    }
+}
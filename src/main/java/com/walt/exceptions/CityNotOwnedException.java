@@ -0,0 +1,12 @@
+package com.walt.exceptions;
+
+/**
+ * Arises when an order is for a city another node of the cluster owns, see ClusterRouter.
+ * unchecked - callers that route orders by ClusterRouter.isLocal never get it
+ */
+public class CityNotOwnedException extends RuntimeException {
+
+    public CityNotOwnedException(Long cityId) {
+        super("Error: city " + cityId + " is owned by another node");
+    }
+}
@@ -0,0 +1,11 @@
+package com.walt.exceptions;
+
+/**
+ * Arises when an order can't be queued because too many orders of its city are already waiting
+ */
+public class IntakeQueueFullException extends Exception {
+
+    public IntakeQueueFullException() {
+        super("Error: too many pending orders, try again later");
+    }
+}
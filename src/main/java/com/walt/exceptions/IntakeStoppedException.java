@@ -0,0 +1,11 @@
+package com.walt.exceptions;
+
+/**
+ * Arises when an order can't be assigned because the intake is shutting down
+ */
+public class IntakeStoppedException extends Exception {
+
+    public IntakeStoppedException() {
+        super("Error: the service is shutting down, try again later");
+    }
+}
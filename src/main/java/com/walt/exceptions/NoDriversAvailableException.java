@@ -1,11 +1,37 @@
 package com.walt.exceptions;
 
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
 /**
- * Arises when there is no available driver
+ * Arises when there is no available driver, with the next time the city may have one if it is known
  */
 public class NoDriversAvailableException extends Exception {
 
+    private final Date nextAvailableTime;
+
     public NoDriversAvailableException() {
         super("Error: no driver is available");
+        this.nextAvailableTime = null;
+    }
+
+    public NoDriversAvailableException(Date nextAvailableTime) {
+        super(nextAvailableTime == null ? "Error: no driver is available"
+                : "Error: no driver is available, next free slot at " + format(nextAvailableTime));
+        this.nextAvailableTime = nextAvailableTime;
+    }
+
+    /**
+     * @return start of the next slot the city has capacity in, null if unknown
+     */
+    public Date getNextAvailableTime() {
+        return nextAvailableTime;
+    }
+
+    private static String format(Date time) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(time);
     }
 }
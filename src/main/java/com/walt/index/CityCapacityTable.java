@@ -0,0 +1,582 @@
+package com.walt.index;
+
+import com.walt.dao.DriverRepository;
+import com.walt.model.City;
+import com.walt.model.Delivery;
+import com.walt.model.Driver;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Precomputed available capacity of every city, per time slot - how many more deliveries the drivers of the city
+ * can take in the slot. checking a delivery looks at the few slots it covers only, whatever the number of drivers.
+ * the capacity of a slot is the sum of Driver.getMaxConcurrentOrders of the drivers whose shift touches the slot,
+ * minus the deliveries of these drivers covering the whole slot. so as long as no driver carries more than its max
+ * concurrent orders, the table can only over-estimate what is left - a rejection by the table is always right,
+ * an acceptance is confirmed per driver by DriverScheduleIndex.
+ * the deliveries are booked per driver and counted in the city the driver is in now, so a driver who moves, changes
+ * shift or is deleted takes the bookings along. slots that ended are dropped, a slot in the past has the whole
+ * shift capacity.
+ * the drivers of every city are also kept as bitmaps per slot - the drivers whose shift touches the slot and the
+ * drivers full all through it - so the drivers that may be free for a delivery are found with a bitwise AND
+ * over the slots it covers, see freeDrivers.
+ * the shifts are loaded with the deliveries by DeliveryIndexLoader, on a journal restore from the drivers in the
+ * repository.
+ */
+@Component
+public class CityCapacityTable implements DeliveryObserver, SnapshotSupport {
+
+    private static final int MINUTES_PER_DAY = 1440;
+
+    @Autowired
+    private DriverRepository driverRepository;
+
+    @Value("${walt.capacity.slot-minutes:15}")
+    private int slotMinutes;
+
+    /**
+     * how far after the wanted time nextAvailable looks for a free slot
+     */
+    @Value("${walt.capacity.search-days:7}")
+    private int searchDays;
+
+    private long slotMillis;
+
+    private int slotsPerDay;
+
+    /**
+     * maps driver's ID to what the driver adds to the capacity of the driver's city
+     */
+    private volatile Map<Long, Share> shares = new HashMap<>();
+
+    /**
+     * maps city ID to the capacity of the city's drivers in every slot of the day
+     */
+    private volatile ConcurrentMap<Long, AtomicIntegerArray> shiftCapacity = new ConcurrentHashMap<>();
+
+    /**
+     * maps driver's ID to slot number (since the epoch) to the number of the driver's deliveries covering the whole
+     * slot, from the current slot on. guarded by this
+     */
+    private Map<Long, TreeMap<Long, Integer>> driverBooked = new HashMap<>();
+
+    /**
+     * maps city ID to slot number (since the epoch) to the number of deliveries covering the whole slot -
+     * the bookings of the city's drivers in the slots their shift touches, summed from driverBooked
+     */
+    private volatile ConcurrentMap<Long, ConcurrentMap<Long, AtomicInteger>> booked = new ConcurrentHashMap<>();
+
+    /**
+     * maps city ID to the bitmaps of the city's drivers, built from shares and driverBooked. guarded by this
+     */
+    private Map<Long, CityDrivers> cityDrivers = new HashMap<>();
+
+    @PostConstruct
+    public void init() {
+        if (this.slotMinutes <= 0 || MINUTES_PER_DAY % this.slotMinutes != 0) {
+            throw new IllegalStateException("walt.capacity.slot-minutes must divide a day, got " + this.slotMinutes);
+        }
+        this.slotMillis = TimeUnit.MINUTES.toMillis(this.slotMinutes);
+        this.slotsPerDay = MINUTES_PER_DAY / this.slotMinutes;
+    }
+
+    /**
+     * a driver was added or changed - move the driver's share and bookings to the driver's current city, shift
+     * and capacity
+     * @param driver the driver as committed
+     */
+    public synchronized void update(Driver driver) {
+        Share share = Share.of(driver);
+        Share previous = this.shares.get(driver.getId());
+        if (Objects.equals(share, previous)) {
+            return;
+        }
+        TreeMap<Long, Integer> driverSlots = this.driverBooked.get(driver.getId());
+        Map<Long, Share> updated = new HashMap<>(this.shares);
+        if (previous != null) {
+            apply(this.shiftCapacity, previous, -1);
+            applyBookings(this.booked, previous, driverSlots, -1);
+            updated.remove(driver.getId());
+        }
+        if (share != null) {
+            apply(this.shiftCapacity, share, 1);
+            applyBookings(this.booked, share, driverSlots, 1);
+            updated.put(driver.getId(), share);
+        }
+        this.shares = updated;
+        if (previous != null) {
+            indexCity(previous.cityId);
+        }
+        if (share != null && (previous == null || !share.cityId.equals(previous.cityId))) {
+            indexCity(share.cityId);
+        }
+    }
+
+    /**
+     * a driver was deleted
+     * @param driverId ID of the deleted driver
+     */
+    public synchronized void remove(Long driverId) {
+        Share previous = this.shares.get(driverId);
+        TreeMap<Long, Integer> driverSlots = this.driverBooked.remove(driverId);
+        if (previous != null) {
+            apply(this.shiftCapacity, previous, -1);
+            applyBookings(this.booked, previous, driverSlots, -1);
+            Map<Long, Share> updated = new HashMap<>(this.shares);
+            updated.remove(driverId);
+            this.shares = updated;
+            indexCity(previous.cityId);
+        }
+    }
+
+    /**
+     * @param city city of the delivery
+     * @param deliveryTime wanted time for the delivery
+     * @param durationMinutes duration of the delivery
+     * @return false if every driver of the city is surely busy or off shift at some point of the delivery
+     */
+    public boolean hasCapacity(City city, Date deliveryTime, int durationMinutes) {
+        long start = deliveryTime.getTime();
+        return hasCapacity(city.getId(), start, start + TimeUnit.MINUTES.toMillis(durationMinutes));
+    }
+
+    /**
+     * @param city city of the delivery
+     * @param deliveryTime wanted time for the delivery
+     * @param durationMinutes duration of the delivery
+     * @return the first slot start after deliveryTime the city has capacity for the delivery from,
+     * null if there is none in walt.capacity.search-days
+     */
+    public Date nextAvailable(City city, Date deliveryTime, int durationMinutes) {
+        long duration = TimeUnit.MINUTES.toMillis(durationMinutes);
+        long firstSlot = Math.floorDiv(deliveryTime.getTime(), this.slotMillis) + 1;
+        for (long slot = firstSlot; slot < firstSlot + (long) this.searchDays * this.slotsPerDay; slot++) {
+            long start = slot * this.slotMillis;
+            if (hasCapacity(city.getId(), start, start + duration)) {
+                return new Date(start);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * the shifts of all the drivers are loaded, and the slots that ended are dropped
+     */
+    /**
+     * the bitmaps of the slots the delivery touches are ANDed - the drivers whose shift touches every one of them,
+     * less the drivers full all through one of them. like hasCapacity it can only over-estimate, a driver it returns
+     * is confirmed by DriverScheduleIndex
+     * @param city city of the delivery
+     * @param deliveryTime wanted time for the delivery
+     * @param durationMinutes duration of the delivery
+     * @return IDs of the drivers of the city that may take the delivery
+     */
+    public synchronized Set<Long> freeDrivers(City city, Date deliveryTime, int durationMinutes) {
+        CityDrivers drivers = this.cityDrivers.get(city.getId());
+        if (drivers == null) {
+            return Collections.emptySet();
+        }
+        long start = deliveryTime.getTime();
+        long lastSlot = Math.floorDiv(start + TimeUnit.MINUTES.toMillis(durationMinutes) - 1, this.slotMillis);
+        BitSet free = new BitSet(drivers.driverIds.length);
+        free.set(0, drivers.driverIds.length);
+        for (long slot = Math.floorDiv(start, this.slotMillis); slot <= lastSlot && !free.isEmpty(); slot++) {
+            free.and(drivers.onShift[slotOfDay(slot)]);
+            BitSet full = drivers.full.get(slot);
+            if (full != null) {
+                free.andNot(full);
+            }
+        }
+        Set<Long> driverIds = new HashSet<>();
+        for (int i = free.nextSetBit(0); i >= 0; i = free.nextSetBit(i + 1)) {
+            driverIds.add(drivers.driverIds[i]);
+        }
+        return driverIds;
+    }
+
+    @Override
+    public void rebuild(Iterable<Driver> drivers, Iterable<Delivery> deliveries) {
+        Map<Long, TreeMap<Long, Integer>> rebuilt = new HashMap<>();
+        long currentSlot = currentSlot();
+        for (Delivery delivery : deliveries) {
+            book(rebuilt, delivery, currentSlot);
+        }
+        synchronized (this) {
+            loadShares(drivers);
+            this.driverBooked = rebuilt;
+            this.booked = applyBookings(this.shares, rebuilt);
+            indexCities();
+        }
+    }
+
+    /**
+     * the shifts of these drivers are replaced too
+     */
+    @Override
+    public synchronized void rebuildDrivers(Collection<Driver> drivers, Iterable<Delivery> deliveries) {
+        Map<Long, TreeMap<Long, Integer>> rebuilt = new HashMap<>();
+        long currentSlot = currentSlot();
+        for (Delivery delivery : deliveries) {
+            book(rebuilt, delivery, currentSlot);
+        }
+        Map<Long, Share> updated = new HashMap<>(this.shares);
+        for (Driver driver : drivers) {
+            Share previous = updated.remove(driver.getId());
+            if (previous != null) {
+                apply(this.shiftCapacity, previous, -1);
+                applyBookings(this.booked, previous, this.driverBooked.get(driver.getId()), -1);
+            }
+            TreeMap<Long, Integer> driverSlots = rebuilt.get(driver.getId());
+            if (driverSlots != null) {
+                this.driverBooked.put(driver.getId(), driverSlots);
+            } else {
+                this.driverBooked.remove(driver.getId());
+            }
+            Share share = Share.of(driver);
+            if (share != null) {
+                apply(this.shiftCapacity, share, 1);
+                applyBookings(this.booked, share, driverSlots, 1);
+                updated.put(driver.getId(), share);
+            }
+        }
+        this.shares = updated;
+        indexCities();
+    }
+
+    @Override
+    public synchronized void onDeliveryCreated(Delivery delivery) {
+        Long driverId = delivery.getDriver().getId();
+        Map<Long, TreeMap<Long, Integer>> added = new HashMap<>();
+        book(added, delivery, currentSlot());
+        TreeMap<Long, Integer> addedSlots = added.get(driverId);
+        if (addedSlots == null) {
+            return;
+        }
+        TreeMap<Long, Integer> driverSlots = this.driverBooked.computeIfAbsent(driverId, id -> new TreeMap<>());
+        for (Map.Entry<Long, Integer> slot : addedSlots.entrySet()) {
+            driverSlots.merge(slot.getKey(), slot.getValue(), Integer::sum);
+        }
+        Share share = this.shares.get(driverId);
+        if (share != null) {
+            applyBookings(this.booked, share, addedSlots, 1);
+            CityDrivers drivers = this.cityDrivers.get(share.cityId);
+            for (Long slot : addedSlots.keySet()) {
+                drivers.booked(driverId, share, slot, driverSlots.get(slot));
+            }
+        }
+    }
+
+    /**
+     * only the bookings of the drivers from the current slot on are written, the shifts are loaded from the drivers
+     */
+    @Override
+    public synchronized void writeSnapshot(DataOutput out) throws IOException {
+        long currentSlot = currentSlot();
+        out.writeInt(this.driverBooked.size());
+        for (Map.Entry<Long, TreeMap<Long, Integer>> driver : this.driverBooked.entrySet()) {
+            Map<Long, Integer> slots = driver.getValue().tailMap(currentSlot);
+            out.writeLong(driver.getKey());
+            out.writeInt(slots.size());
+            for (Map.Entry<Long, Integer> slot : slots.entrySet()) {
+                out.writeLong(slot.getKey());
+                out.writeInt(slot.getValue());
+            }
+        }
+    }
+
+    @Override
+    public synchronized void readSnapshot(DataInput in) throws IOException {
+        Map<Long, TreeMap<Long, Integer>> restored = new HashMap<>();
+        long currentSlot = currentSlot();
+        for (int drivers = in.readInt(); drivers > 0; drivers--) {
+            TreeMap<Long, Integer> slots = new TreeMap<>();
+            restored.put(in.readLong(), slots);
+            for (int count = in.readInt(); count > 0; count--) {
+                long slot = in.readLong();
+                int deliveries = in.readInt();
+                if (slot >= currentSlot) {
+                    slots.put(slot, deliveries);
+                }
+            }
+        }
+        loadShares(this.driverRepository.findAll());
+        this.driverBooked = restored;
+        this.booked = applyBookings(this.shares, restored);
+        indexCities();
+    }
+
+    /**
+     * replace the shares and the shift capacity with those of the given drivers
+     */
+    private void loadShares(Iterable<Driver> drivers) {
+        Map<Long, Share> loaded = new HashMap<>();
+        ConcurrentMap<Long, AtomicIntegerArray> capacity = new ConcurrentHashMap<>();
+        for (Driver driver : drivers) {
+            Share share = Share.of(driver);
+            if (share != null) {
+                loaded.put(driver.getId(), share);
+                apply(capacity, share, 1);
+            }
+        }
+        this.shares = loaded;
+        this.shiftCapacity = capacity;
+    }
+
+    /**
+     * the slots [start, end) touches must all have capacity left
+     */
+    private boolean hasCapacity(Long cityId, long start, long end) {
+        AtomicIntegerArray capacity = this.shiftCapacity.get(cityId);
+        if (capacity == null) {
+            return false;
+        }
+        Map<Long, AtomicInteger> cityBooked = this.booked.get(cityId);
+        long lastSlot = Math.floorDiv(end - 1, this.slotMillis);
+        for (long slot = Math.floorDiv(start, this.slotMillis); slot <= lastSlot; slot++) {
+            AtomicInteger count = cityBooked == null ? null : cityBooked.get(slot);
+            if (capacity.get(slotOfDay(slot)) - (count == null ? 0 : count.get()) <= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * count the delivery in every slot from currentSlot on it covers whole, for its driver.
+     * a bundle is counted once through its first stop
+     */
+    private void book(Map<Long, TreeMap<Long, Integer>> driverBooked, Delivery delivery, long currentSlot) {
+        if (!delivery.isFirstStop()) {
+            return;
+        }
+        long firstSlot = Math.max(currentSlot,
+                Math.floorDiv(delivery.getBookedTime().getTime() + this.slotMillis - 1, this.slotMillis));
+        long endSlot = Math.floorDiv(delivery.getEndTime().getTime(), this.slotMillis);
+        if (firstSlot >= endSlot) {
+            return;
+        }
+        TreeMap<Long, Integer> slots = driverBooked.computeIfAbsent(delivery.getDriver().getId(),
+                id -> new TreeMap<>());
+        for (long slot = firstSlot; slot < endSlot; slot++) {
+            slots.merge(slot, 1, Integer::sum);
+        }
+    }
+
+    /**
+     * @return the bookings of every driver with a share, summed per city
+     */
+    private ConcurrentMap<Long, ConcurrentMap<Long, AtomicInteger>> applyBookings(Map<Long, Share> shares,
+            Map<Long, TreeMap<Long, Integer>> driverBooked) {
+        ConcurrentMap<Long, ConcurrentMap<Long, AtomicInteger>> booked = new ConcurrentHashMap<>();
+        for (Map.Entry<Long, TreeMap<Long, Integer>> driver : driverBooked.entrySet()) {
+            Share share = shares.get(driver.getKey());
+            if (share != null) {
+                applyBookings(booked, share, driver.getValue(), 1);
+            }
+        }
+        return booked;
+    }
+
+    /**
+     * add (sign 1) or take off (sign -1) a driver's bookings in the driver's city, in the slots the driver's
+     * shift touches - only there the driver adds to the capacity
+     */
+    private void applyBookings(ConcurrentMap<Long, ConcurrentMap<Long, AtomicInteger>> booked, Share share,
+            Map<Long, Integer> driverSlots, int sign) {
+        if (driverSlots == null) {
+            return;
+        }
+        ConcurrentMap<Long, AtomicInteger> slots = booked.computeIfAbsent(share.cityId,
+                id -> new ConcurrentHashMap<>());
+        for (Map.Entry<Long, Integer> slot : driverSlots.entrySet()) {
+            if (share.touches(slotOfDay(slot.getKey()) * this.slotMinutes, this.slotMinutes)) {
+                slots.computeIfAbsent(slot.getKey(), s -> new AtomicInteger()).addAndGet(sign * slot.getValue());
+            }
+        }
+    }
+
+    /**
+     * add (sign 1) or take off (sign -1) the driver's capacity in every slot of the day the driver's shift touches
+     */
+    private void apply(ConcurrentMap<Long, AtomicIntegerArray> capacity, Share share, int sign) {
+        AtomicIntegerArray slots = capacity.computeIfAbsent(share.cityId,
+                id -> new AtomicIntegerArray(this.slotsPerDay));
+        for (int slot = 0; slot < this.slotsPerDay; slot++) {
+            if (share.touches(slot * this.slotMinutes, this.slotMinutes)) {
+                slots.addAndGet(slot, sign * share.maxConcurrentOrders);
+            }
+        }
+    }
+
+    /**
+     * rebuild the bitmaps of every city, must hold this
+     */
+    private void indexCities() {
+        Map<Long, List<Long>> byCity = new HashMap<>();
+        for (Map.Entry<Long, Share> share : this.shares.entrySet()) {
+            byCity.computeIfAbsent(share.getValue().cityId, id -> new ArrayList<>()).add(share.getKey());
+        }
+        Map<Long, CityDrivers> indexed = new HashMap<>();
+        for (Map.Entry<Long, List<Long>> city : byCity.entrySet()) {
+            indexed.put(city.getKey(), new CityDrivers(city.getValue()));
+        }
+        this.cityDrivers = indexed;
+    }
+
+    /**
+     * rebuild the bitmaps of a single city after one of its drivers changed, must hold this
+     */
+    private void indexCity(Long cityId) {
+        List<Long> driverIds = new ArrayList<>();
+        for (Map.Entry<Long, Share> share : this.shares.entrySet()) {
+            if (share.getValue().cityId.equals(cityId)) {
+                driverIds.add(share.getKey());
+            }
+        }
+        if (driverIds.isEmpty()) {
+            this.cityDrivers.remove(cityId);
+        } else {
+            this.cityDrivers.put(cityId, new CityDrivers(driverIds));
+        }
+    }
+
+    /**
+     * @return number (since the epoch) of the slot now is in
+     */
+    private long currentSlot() {
+        return Math.floorDiv(System.currentTimeMillis(), this.slotMillis);
+    }
+
+    private int slotOfDay(long slot) {
+        return (int) Math.floorMod(slot, (long) this.slotsPerDay);
+    }
+
+    /**
+     * the drivers of a city as bit positions, with a bitmap per slot of the day of the drivers whose shift touches
+     * it and a bitmap per booked slot (since the epoch) of the drivers whose deliveries covering the whole slot
+     * reach their max concurrent orders
+     */
+    private final class CityDrivers {
+        private final long[] driverIds;
+        private final Map<Long, Integer> positions = new HashMap<>();
+        private final BitSet[] onShift = new BitSet[slotsPerDay];
+        private final Map<Long, BitSet> full = new HashMap<>();
+
+        private CityDrivers(List<Long> driverIds) {
+            this.driverIds = new long[driverIds.size()];
+            for (int slot = 0; slot < slotsPerDay; slot++) {
+                this.onShift[slot] = new BitSet(driverIds.size());
+            }
+            for (int position = 0; position < driverIds.size(); position++) {
+                Long driverId = driverIds.get(position);
+                Share share = shares.get(driverId);
+                this.driverIds[position] = driverId;
+                this.positions.put(driverId, position);
+                for (int slot = 0; slot < slotsPerDay; slot++) {
+                    if (share.touches(slot * slotMinutes, slotMinutes)) {
+                        this.onShift[slot].set(position);
+                    }
+                }
+                TreeMap<Long, Integer> driverSlots = driverBooked.get(driverId);
+                if (driverSlots != null) {
+                    for (Map.Entry<Long, Integer> slot : driverSlots.entrySet()) {
+                        booked(driverId, share, slot.getKey(), slot.getValue());
+                    }
+                }
+            }
+        }
+
+        /**
+         * @param deliveries number of the driver's deliveries covering the whole slot
+         */
+        private void booked(Long driverId, Share share, long slot, int deliveries) {
+            if (deliveries >= share.maxConcurrentOrders) {
+                this.full.computeIfAbsent(slot, s -> new BitSet(this.driverIds.length))
+                        .set(this.positions.get(driverId));
+            }
+        }
+    }
+
+    /**
+     * what a single driver adds to the capacity of a city
+     */
+    private static final class Share {
+        private final Long cityId;
+        private final Integer shiftStartMinute;
+        private final Integer shiftEndMinute;
+        private final int maxConcurrentOrders;
+
+        private Share(Long cityId, Integer shiftStartMinute, Integer shiftEndMinute, int maxConcurrentOrders) {
+            this.cityId = cityId;
+            this.shiftStartMinute = shiftStartMinute;
+            this.shiftEndMinute = shiftEndMinute;
+            this.maxConcurrentOrders = maxConcurrentOrders;
+        }
+
+        /**
+         * @return the driver's share, null for a driver without a city
+         */
+        private static Share of(Driver driver) {
+            if (driver.getCity() == null) {
+                return null;
+            }
+            return new Share(driver.getCity().getId(), driver.getShiftStartMinute(), driver.getShiftEndMinute(),
+                    driver.getMaxConcurrentOrders());
+        }
+
+        /**
+         * @return true if the shift overlaps [minute, minute + length) of the day
+         */
+        private boolean touches(int minute, int length) {
+            if (this.shiftStartMinute == null) {
+                return true;
+            }
+            int shiftLength = Math.floorMod(this.shiftEndMinute - this.shiftStartMinute, MINUTES_PER_DAY);
+            if (shiftLength == 0) {
+                shiftLength = MINUTES_PER_DAY;
+            }
+            //the slot starts inside the shift, or the shift starts inside the slot
+            return Math.floorMod(minute - this.shiftStartMinute, MINUTES_PER_DAY) < shiftLength
+                    || Math.floorMod(this.shiftStartMinute - minute, MINUTES_PER_DAY) < length;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Share)) {
+                return false;
+            }
+            Share other = (Share) o;
+            return this.cityId.equals(other.cityId) && Objects.equals(this.shiftStartMinute, other.shiftStartMinute)
+                    && Objects.equals(this.shiftEndMinute, other.shiftEndMinute)
+                    && this.maxConcurrentOrders == other.maxConcurrentOrders;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(this.cityId, this.shiftStartMinute, this.shiftEndMinute, this.maxConcurrentOrders);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.walt.index;
+
+import com.walt.model.Delivery;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.EventType;
+import org.hibernate.event.spi.PostCommitInsertEventListener;
+import org.hibernate.event.spi.PostInsertEvent;
+import org.hibernate.persister.entity.EntityPersister;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManagerFactory;
+
+/**
+ * Hibernate listener that forwards every committed Delivery insert to the in-memory observers,
+ * no matter if it was saved by WaltService or directly through DeliveryRepository.
+ * deliveries go through DeliveryIndexLoader, which logs them to DeliveryJournal as they are applied.
+ */
+@Component
+public class DeliveryEventListener implements PostCommitInsertEventListener {
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    @Autowired
+    private DeliveryIndexLoader deliveryIndexLoader;
+
+    /**
+     * register this listener on the hibernate session factory
+     */
+    @PostConstruct
+    public void register() {
+        SessionFactoryImplementor sessionFactory = this.entityManagerFactory.unwrap(SessionFactoryImplementor.class);
+        EventListenerRegistry registry = sessionFactory.getServiceRegistry().getService(EventListenerRegistry.class);
+        registry.appendListeners(EventType.POST_COMMIT_INSERT, this);
+    }
+
+    @Override
+    public void onPostInsert(PostInsertEvent event) {
+        if (event.getEntity() instanceof Delivery) {
+            this.deliveryIndexLoader.onDeliveryCommitted((Delivery) event.getEntity());
+        }
+    }
+
+    @Override
+    public void onPostInsertCommitFailed(PostInsertEvent event) {
+        //the delivery was never committed, nothing to update
+    }
+
+    @Override
+    public boolean requiresPostCommitHandling(EntityPersister persister) {
+        return Delivery.class.equals(persister.getMappedClass());
+    }
+
+    /**
+     * still abstract in hibernate 5.4, replaced by requiresPostCommitHandling
+     */
+    @Override
+    @Deprecated
+    public boolean requiresPostCommitHanding(EntityPersister persister) {
+        return requiresPostCommitHandling(persister);
+    }
+}
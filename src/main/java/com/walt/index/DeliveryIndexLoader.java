@@ -0,0 +1,188 @@
+package com.walt.index;
+
+import com.walt.dao.DeliveryRepository;
+import com.walt.dao.DriverRepository;
+import com.walt.journal.DeliveryJournal;
+import com.walt.model.Delivery;
+import com.walt.model.Driver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Seeds all the DeliveryObserver views when the application starts, from the DeliveryJournal if it has a
+ * snapshot and otherwise from DeliveryRepository,
+ * and periodically re-derives them from the repository to correct any drift.
+ * every committed delivery and driver change reaches the views through this loader, so a reload never loses one
+ * that commits while the repository is read.
+ */
+@Component
+public class DeliveryIndexLoader implements SmartInitializingSingleton {
+
+    private static final Logger log = LoggerFactory.getLogger(DeliveryIndexLoader.class);
+
+    @Autowired
+    private DeliveryRepository deliveryRepository;
+
+    @Autowired
+    private DriverRepository driverRepository;
+
+    @Autowired
+    private List<DeliveryObserver> observers;
+
+    @Autowired
+    private DeliveryJournal deliveryJournal;
+
+    /**
+     * updates of the views share the read lock, a reload takes the write lock while it swaps the views
+     */
+    private final ReadWriteLock reloadLock = new ReentrantReadWriteLock();
+
+    /**
+     * deliveries committed since the running reload started to read the repository, null if there is no reload
+     */
+    private volatile List<Delivery> committedDuringReload;
+
+    /**
+     * driver changes committed since the running reload started to read the repository, null if there is no reload
+     */
+    private volatile List<Runnable> driversChangedDuringReload;
+
+    /**
+     * restore the observers from the journal, or load them from the repository if it can't.
+     * runs once all the beans are created, before the web server and the scheduled jobs start - no order is
+     * served by views that miss deliveries, and no delivery commits here while the journal catches up
+     */
+    @Override
+    public synchronized void afterSingletonsInstantiated() {
+        if (!this.deliveryJournal.restore()) {
+            load();
+        }
+    }
+
+    /**
+     * load all drivers and deliveries once and rebuild every observer from them, then snapshot the rebuilt observers
+     */
+    public synchronized void load() {
+        List<Driver> drivers = new ArrayList<>();
+        List<Delivery> deliveries = reload(() -> {
+            this.driverRepository.findAll().forEach(drivers::add);
+            return this.deliveryRepository.findAllWithBundle();
+        }, read -> {
+            for (DeliveryObserver observer : this.observers) {
+                observer.rebuild(drivers, read);
+            }
+        }, this::apply);
+        log.info("loaded {} deliveries into {} observers", deliveries.size(), this.observers.size());
+        this.deliveryJournal.loaded(deliveries);
+        this.deliveryJournal.snapshot();
+    }
+
+    /**
+     * reconciliation job - rebuild every observer from the repository
+     */
+    @Scheduled(initialDelayString = "${walt.index.reconcile-interval-ms}",
+            fixedDelayString = "${walt.index.reconcile-interval-ms}")
+    public void reconcile() {
+        load();
+    }
+
+    /**
+     * read state from the repository and swap it into the views without losing what commits meanwhile.
+     * deliveries committed while the repository is read are applied to the current views and kept, the swap holds
+     * new ones back, and the kept deliveries the read missed are applied to the swapped views.
+     * kept driver changes are applied again as they are, applying one twice changes nothing
+     * @param read reads the deliveries, and whatever else the swap needs, from the repository
+     * @param swap replaces the views with the state built from the read deliveries, must not use the repository
+     * @param replay applies a kept delivery the read missed to the swapped views
+     * @return the read deliveries
+     */
+    public synchronized List<Delivery> reload(Supplier<List<Delivery>> read, Consumer<List<Delivery>> swap,
+                                              Consumer<Delivery> replay) {
+        List<Delivery> committed = Collections.synchronizedList(new ArrayList<>());
+        List<Runnable> driversChanged = Collections.synchronizedList(new ArrayList<>());
+        this.committedDuringReload = committed;
+        this.driversChangedDuringReload = driversChanged;
+        try {
+            List<Delivery> deliveries = read.get();
+            this.reloadLock.writeLock().lock();
+            try {
+                swap.accept(deliveries);
+                Set<Long> missed = new HashSet<>();
+                for (Delivery delivery : committed) {
+                    missed.add(delivery.getId());
+                }
+                for (Delivery delivery : deliveries) {
+                    missed.remove(delivery.getId());
+                }
+                for (Delivery delivery : committed) {
+                    if (missed.contains(delivery.getId())) {
+                        replay.accept(delivery);
+                    }
+                }
+                for (Runnable driverChanged : driversChanged) {
+                    driverChanged.run();
+                }
+                return deliveries;
+            } finally {
+                this.reloadLock.writeLock().unlock();
+            }
+        } finally {
+            this.committedDuringReload = null;
+            this.driversChangedDuringReload = null;
+        }
+    }
+
+    /**
+     * log a committed delivery and apply it to every observer
+     * @param delivery the committed delivery
+     */
+    public void onDeliveryCommitted(Delivery delivery) {
+        this.reloadLock.readLock().lock();
+        try {
+            List<Delivery> committed = this.committedDuringReload;
+            if (committed != null) {
+                committed.add(delivery);
+            }
+            this.deliveryJournal.record(delivery, () -> apply(delivery));
+        } finally {
+            this.reloadLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * apply a committed driver change to the views that follow the drivers
+     * @param update applies the change, must give the same result if run twice
+     */
+    public void onDriverCommitted(Runnable update) {
+        this.reloadLock.readLock().lock();
+        try {
+            List<Runnable> driversChanged = this.driversChangedDuringReload;
+            if (driversChanged != null) {
+                driversChanged.add(update);
+            }
+            update.run();
+        } finally {
+            this.reloadLock.readLock().unlock();
+        }
+    }
+
+    private void apply(Delivery delivery) {
+        for (DeliveryObserver observer : this.observers) {
+            observer.onDeliveryCreated(delivery);
+        }
+    }
+}
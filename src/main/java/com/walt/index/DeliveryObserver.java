@@ -0,0 +1,35 @@
+package com.walt.index;
+
+import com.walt.model.Delivery;
+import com.walt.model.Driver;
+
+import java.util.Collection;
+
+/**
+ * An in-memory view derived from the deliveries table.
+ * loaded once by DeliveryIndexLoader and then kept current by DeliveryEventListener.
+ */
+public interface DeliveryObserver {
+
+    /**
+     * replace the whole state of the view with the given drivers and deliveries.
+     * only called through DeliveryIndexLoader.reload, which replays the deliveries the read missed afterwards
+     * @param drivers all the drivers in the repository, drivers without deliveries included
+     * @param deliveries all the deliveries in the repository
+     */
+    void rebuild(Iterable<Driver> drivers, Iterable<Delivery> deliveries);
+
+    /**
+     * replace the state of some drivers only, e.g. the drivers of a city this node just started to own.
+     * only called through DeliveryIndexLoader.reload, like rebuild
+     * @param drivers drivers to replace
+     * @param deliveries all the deliveries of these drivers
+     */
+    void rebuildDrivers(Collection<Driver> drivers, Iterable<Delivery> deliveries);
+
+    /**
+     * update the view with a delivery that was just committed
+     * @param delivery the new delivery
+     */
+    void onDeliveryCreated(Delivery delivery);
+}
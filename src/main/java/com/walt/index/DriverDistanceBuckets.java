@@ -0,0 +1,416 @@
+package com.walt.index;
+
+import com.walt.dao.DriverRepository;
+import com.walt.model.City;
+import com.walt.model.Delivery;
+import com.walt.model.Driver;
+import com.walt.model.DriverDistance;
+import com.walt.model.DriverDistanceImpl;
+import com.walt.model.DriverRank;
+import com.walt.sort.SortRankByDistance;
+import com.walt.sort.TopByDistance;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per driver distance and route totals by hour and by day of the delivery time (UTC).
+ * every committed delivery is added to its hour bucket and to its day bucket, so the total distance of a driver
+ * in a time range is summed from the day buckets inside the range plus the hour buckets at its edges -
+ * a week is at most 7 day buckets and 46 hour buckets per driver, however many deliveries there are.
+ * the hour buckets of the days older than walt.report.hour-retention-days are dropped, their totals stay in the
+ * day buckets - a range edge in such a day is widened to the whole day.
+ * every driver has buckets, with the driver's current city, so a report ranks the drivers by their IDs and loads
+ * only the drivers of the rows it returns.
+ * like every DeliveryObserver the buckets are rebuilt from the deliveries at startup (or restored from the journal),
+ * nothing is lost on a restart.
+ */
+@Component
+public class DriverDistanceBuckets implements DeliveryObserver, SnapshotSupport {
+
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+    private static final long HOURS_PER_DAY = 24;
+
+    /**
+     * places of the totals in a bucket
+     */
+    private static final int DISTANCE = 0;
+    private static final int ROUTES = 1;
+
+    @Autowired
+    private DriverRepository driverRepository;
+
+    /**
+     * how many days back (before today, UTC) the hour buckets are kept for
+     */
+    @Value("${walt.report.hour-retention-days:31}")
+    private int hourRetentionDays;
+
+    /**
+     * maps driver's ID to the driver's buckets
+     */
+    private volatile ConcurrentMap<Long, Buckets> buckets = new ConcurrentHashMap<>();
+
+    /**
+     * first hour (since the epoch) there are hour buckets for, always the start of a day
+     */
+    private volatile long firstKeptHour;
+
+    @PostConstruct
+    public void init() {
+        if (this.hourRetentionDays < 0) {
+            throw new IllegalStateException("walt.report.hour-retention-days must not be negative, got "
+                    + this.hourRetentionDays);
+        }
+        this.firstKeptHour = firstKeptHour();
+    }
+
+    /**
+     * @param driver driver to sum
+     * @param from start of the range, widened to the start of its hour (of its day past the hour retention)
+     * @param to end of the range (exclusive), widened to the end of its hour (of its day past the hour retention)
+     * @return total distance of the driver's deliveries in the range
+     */
+    public long getTotalDistance(Driver driver, Date from, Date to) {
+        Buckets driverBuckets = this.buckets.get(driver.getId());
+        return driverBuckets == null ? 0 : getTotals(driverBuckets, from, to)[DISTANCE];
+    }
+
+    /**
+     * @return total distance and number of routes of the driver's deliveries in the range, see getTotalDistance
+     */
+    private long[] getTotals(Buckets driverBuckets, Date from, Date to) {
+        if (!to.after(from)) {
+            return new long[2];
+        }
+        long firstHour = Math.floorDiv(from.getTime(), HOUR);
+        long lastHour = Math.floorDiv(to.getTime() - 1, HOUR);
+        long keptFrom = this.firstKeptHour;
+        if (firstHour < keptFrom) {
+            firstHour = Math.floorDiv(firstHour, HOURS_PER_DAY) * HOURS_PER_DAY;
+        }
+        if (lastHour < keptFrom) {
+            lastHour = Math.floorDiv(lastHour, HOURS_PER_DAY) * HOURS_PER_DAY + HOURS_PER_DAY - 1;
+        }
+        return driverBuckets.sum(firstHour, lastHour);
+    }
+
+    /**
+     * the drivers are loaded once the rows are ranked
+     * @param city rank only the drivers of the given city, null for all the drivers
+     * @param from start of the range
+     * @param to end of the range (exclusive)
+     * @return drivers ranked by total distance in the range in descending order, drivers without deliveries in
+     * the range with 0
+     */
+    public List<DriverDistance> getRank(City city, Date from, Date to) {
+        List<DriverRank> ranks = new ArrayList<>();
+        Iterator<DriverRank> iterator = ranks(city, from, to);
+        while (iterator.hasNext()) {
+            ranks.add(iterator.next());
+        }
+        ranks.sort(SortRankByDistance.INSTANCE);
+        Set<Long> driverIds = new HashSet<>();
+        for (DriverRank rank : ranks) {
+            driverIds.add(rank.getDriverId());
+        }
+        Map<Long, Driver> drivers = new HashMap<>();
+        for (Driver driver : this.driverRepository.findAllById(driverIds)) {
+            drivers.put(driver.getId(), driver);
+        }
+        List<DriverDistance> reportList = new ArrayList<>(ranks.size());
+        for (DriverRank rank : ranks) {
+            Driver driver = drivers.get(rank.getDriverId());
+            if (driver != null) { //not deleted since
+                reportList.add(new DriverDistanceImpl(driver, rank.getTotalDistance(), rank.getRoutes()));
+            }
+        }
+        return reportList;
+    }
+
+    /**
+     * only the k selected drivers are looked up for their names, through the second-level cache
+     * @param city rank only the drivers of the given city, null for all the drivers
+     * @param from start of the range
+     * @param to end of the range (exclusive)
+     * @param k number of drivers to return
+     * @return the k drivers with the longest total distance in the range, in descending order
+     */
+    public List<DriverRank> getTop(City city, Date from, Date to, int k) {
+        List<DriverRank> top = new ArrayList<>();
+        for (DriverRank rank : TopByDistance.select(ranks(city, from, to), k)) {
+            Optional<Driver> driver = this.driverRepository.findById(rank.getDriverId());
+            if (driver.isPresent()) { //not deleted since
+                top.add(new DriverRank(rank.getDriverId(), driver.get().getName(), rank.getTotalDistance(),
+                        rank.getRoutes()));
+            }
+        }
+        return top;
+    }
+
+    /**
+     * a driver was added or changed - keep the driver's current city
+     * @param driver the driver as committed
+     */
+    public synchronized void onDriverSaved(Driver driver) {
+        this.buckets.computeIfAbsent(driver.getId(), id -> new Buckets()).cityId = cityId(driver);
+    }
+
+    /**
+     * a driver was deleted
+     * @param driverId ID of the deleted driver
+     */
+    public synchronized void onDriverDeleted(Long driverId) {
+        this.buckets.remove(driverId);
+    }
+
+    /**
+     * the deliveries of drivers that are gone are left out
+     */
+    @Override
+    public void rebuild(Iterable<Driver> drivers, Iterable<Delivery> deliveries) {
+        ConcurrentMap<Long, Buckets> rebuilt = new ConcurrentHashMap<>();
+        for (Driver driver : drivers) {
+            rebuilt.put(driver.getId(), new Buckets(cityId(driver)));
+        }
+        add(rebuilt, deliveries, this.firstKeptHour);
+        synchronized (this) {
+            this.buckets = rebuilt;
+        }
+    }
+
+    @Override
+    public void rebuildDrivers(Collection<Driver> drivers, Iterable<Delivery> deliveries) {
+        ConcurrentMap<Long, Buckets> rebuilt = new ConcurrentHashMap<>();
+        for (Driver driver : drivers) {
+            rebuilt.put(driver.getId(), new Buckets(cityId(driver)));
+        }
+        add(rebuilt, deliveries, this.firstKeptHour);
+        synchronized (this) {
+            this.buckets.putAll(rebuilt);
+        }
+    }
+
+    @Override
+    public synchronized void onDeliveryCreated(Delivery delivery) {
+        this.buckets.computeIfAbsent(delivery.getDriver().getId(), id -> new Buckets(cityId(delivery.getDriver())))
+                .add(delivery, this.firstKeptHour);
+    }
+
+    /**
+     * drop the hour buckets of the days that fell out of walt.report.hour-retention-days
+     */
+    @Scheduled(initialDelayString = "${walt.index.reconcile-interval-ms}",
+            fixedDelayString = "${walt.index.reconcile-interval-ms}")
+    public void evictHours() {
+        //ranges are widened to whole days before the hours they would need are gone
+        long keptFrom = firstKeptHour();
+        this.firstKeptHour = keptFrom;
+        for (Buckets driverBuckets : this.buckets.values()) {
+            driverBuckets.evict(keptFrom);
+        }
+    }
+
+    /**
+     * the day buckets and the hour buckets still kept are written, the cities are loaded from the drivers
+     */
+    @Override
+    public void writeSnapshot(DataOutput out) throws IOException {
+        Map<Long, Buckets> current = new HashMap<>(this.buckets);
+        out.writeInt(current.size());
+        for (Map.Entry<Long, Buckets> driverBuckets : current.entrySet()) {
+            out.writeLong(driverBuckets.getKey());
+            driverBuckets.getValue().write(out);
+        }
+    }
+
+    @Override
+    public void readSnapshot(DataInput in) throws IOException {
+        Map<Long, Buckets> read = new HashMap<>();
+        for (int drivers = in.readInt(); drivers > 0; drivers--) {
+            Buckets driverBuckets = new Buckets();
+            read.put(in.readLong(), driverBuckets);
+            driverBuckets.read(in, this.firstKeptHour);
+        }
+        //drivers added since the snapshot get empty buckets, the buckets of deleted drivers are dropped
+        ConcurrentMap<Long, Buckets> restored = new ConcurrentHashMap<>();
+        for (Driver driver : this.driverRepository.findAll()) {
+            Buckets driverBuckets = read.getOrDefault(driver.getId(), new Buckets());
+            driverBuckets.cityId = cityId(driver);
+            restored.put(driver.getId(), driverBuckets);
+        }
+        synchronized (this) {
+            this.buckets = restored;
+        }
+    }
+
+    /**
+     * add the deliveries of the drivers that have buckets
+     */
+    private static void add(Map<Long, Buckets> buckets, Iterable<Delivery> deliveries, long firstKeptHour) {
+        for (Delivery delivery : deliveries) {
+            Buckets driverBuckets = buckets.get(delivery.getDriver().getId());
+            if (driverBuckets != null) {
+                driverBuckets.add(delivery, firstKeptHour);
+            }
+        }
+    }
+
+    /**
+     * @return the totals of the drivers of the city (of all the drivers if city is null) in the range, without names
+     */
+    private Iterator<DriverRank> ranks(City city, Date from, Date to) {
+        Long cityId = city == null ? null : city.getId();
+        Iterator<Map.Entry<Long, Buckets>> drivers = this.buckets.entrySet().stream()
+                .filter(driver -> cityId == null || cityId.equals(driver.getValue().cityId))
+                .iterator();
+        return new Iterator<DriverRank>() {
+            @Override
+            public boolean hasNext() {
+                return drivers.hasNext();
+            }
+
+            @Override
+            public DriverRank next() {
+                Map.Entry<Long, Buckets> driver = drivers.next();
+                long[] totals = getTotals(driver.getValue(), from, to);
+                return new DriverRank(driver.getKey(), null, totals[DISTANCE], totals[ROUTES]);
+            }
+        };
+    }
+
+    private static Long cityId(Driver driver) {
+        return driver.getCity() == null ? null : driver.getCity().getId();
+    }
+
+    /**
+     * @return start of the first day the hour buckets are kept for, as of now
+     */
+    private long firstKeptHour() {
+        long today = Math.floorDiv(System.currentTimeMillis(), HOUR * HOURS_PER_DAY);
+        return (today - this.hourRetentionDays) * HOURS_PER_DAY;
+    }
+
+    /**
+     * the hour and day buckets of a single driver, keyed by hours / days since the epoch, and the driver's city.
+     * each bucket holds the total distance and the number of routes, there are hour buckets from firstKeptHour only
+     */
+    private static final class Buckets {
+        private final TreeMap<Long, long[]> hours = new TreeMap<>();
+        private final TreeMap<Long, long[]> days = new TreeMap<>();
+
+        /**
+         * null for a driver without a city
+         */
+        private volatile Long cityId;
+
+        private Buckets() {
+        }
+
+        private Buckets(Long cityId) {
+            this.cityId = cityId;
+        }
+
+        /**
+         * the distance of a delivery is its leg of the route, the route is counted at its first stop
+         */
+        private void add(Delivery delivery, long firstKeptHour) {
+            add(Math.floorDiv(delivery.getDeliveryTime().getTime(), HOUR), Math.round(delivery.getDistance()),
+                    delivery.isFirstStop() ? 1 : 0, firstKeptHour);
+        }
+
+        private synchronized void add(long hour, long distance, long routes, long firstKeptHour) {
+            if (hour >= firstKeptHour) {
+                add(this.hours.computeIfAbsent(hour, h -> new long[2]), distance, routes);
+            }
+            add(this.days.computeIfAbsent(Math.floorDiv(hour, HOURS_PER_DAY), d -> new long[2]), distance, routes);
+        }
+
+        private static void add(long[] bucket, long distance, long routes) {
+            bucket[DISTANCE] += distance;
+            bucket[ROUTES] += routes;
+        }
+
+        private synchronized void evict(long firstKeptHour) {
+            this.hours.headMap(firstKeptHour).clear();
+        }
+
+        private synchronized void write(DataOutput out) throws IOException {
+            write(this.days, out);
+            write(this.hours, out);
+        }
+
+        private static void write(TreeMap<Long, long[]> buckets, DataOutput out) throws IOException {
+            out.writeInt(buckets.size());
+            for (Map.Entry<Long, long[]> bucket : buckets.entrySet()) {
+                out.writeLong(bucket.getKey());
+                out.writeLong(bucket.getValue()[DISTANCE]);
+                out.writeLong(bucket.getValue()[ROUTES]);
+            }
+        }
+
+        /**
+         * @param firstKeptHour the hour buckets before it are skipped, they are already in the day buckets
+         */
+        private synchronized void read(DataInput in, long firstKeptHour) throws IOException {
+            read(in, this.days, Long.MIN_VALUE);
+            read(in, this.hours, firstKeptHour);
+        }
+
+        private static void read(DataInput in, TreeMap<Long, long[]> buckets, long firstKey) throws IOException {
+            for (int count = in.readInt(); count > 0; count--) {
+                long key = in.readLong();
+                long[] bucket = {in.readLong(), in.readLong()};
+                if (key >= firstKey) {
+                    buckets.put(key, bucket);
+                }
+            }
+        }
+
+        /**
+         * @param firstHour first hour of the range
+         * @param lastHour last hour of the range (inclusive)
+         */
+        private synchronized long[] sum(long firstHour, long lastHour) {
+            long[] total = new long[2];
+            long firstDay = Math.floorDiv(firstHour + HOURS_PER_DAY - 1, HOURS_PER_DAY); //first whole day
+            long endDay = Math.floorDiv(lastHour + 1, HOURS_PER_DAY); //after the last whole day
+            if (firstDay >= endDay) {
+                sum(this.hours, firstHour, lastHour + 1, total);
+                return total;
+            }
+            sum(this.hours, firstHour, firstDay * HOURS_PER_DAY, total);
+            sum(this.days, firstDay, endDay, total);
+            sum(this.hours, endDay * HOURS_PER_DAY, lastHour + 1, total);
+            return total;
+        }
+
+        private static void sum(TreeMap<Long, long[]> buckets, long from, long to, long[] total) {
+            for (long[] bucket : buckets.subMap(from, to).values()) {
+                add(total, bucket[DISTANCE], bucket[ROUTES]);
+            }
+        }
+    }
+}
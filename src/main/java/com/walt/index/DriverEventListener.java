@@ -0,0 +1,117 @@
+package com.walt.index;
+
+import com.walt.model.Driver;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.EventType;
+import org.hibernate.event.spi.PostCommitDeleteEventListener;
+import org.hibernate.event.spi.PostCommitInsertEventListener;
+import org.hibernate.event.spi.PostCommitUpdateEventListener;
+import org.hibernate.event.spi.PostDeleteEvent;
+import org.hibernate.event.spi.PostInsertEvent;
+import org.hibernate.event.spi.PostUpdateEvent;
+import org.hibernate.persister.entity.EntityPersister;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManagerFactory;
+
+/**
+ * Hibernate listener that keeps CityCapacityTable, DriverLeaderboard and DriverDistanceBuckets in line with every
+ * committed Driver insert, update and delete.
+ */
+@Component
+public class DriverEventListener implements PostCommitInsertEventListener, PostCommitUpdateEventListener,
+        PostCommitDeleteEventListener {
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    @Autowired
+    private CityCapacityTable cityCapacityTable;
+
+    @Autowired
+    private DriverLeaderboard driverLeaderboard;
+
+    @Autowired
+    private DriverDistanceBuckets driverDistanceBuckets;
+
+    @Autowired
+    private DeliveryIndexLoader deliveryIndexLoader;
+
+    /**
+     * register this listener on the hibernate session factory
+     */
+    @PostConstruct
+    public void register() {
+        SessionFactoryImplementor sessionFactory = this.entityManagerFactory.unwrap(SessionFactoryImplementor.class);
+        EventListenerRegistry registry = sessionFactory.getServiceRegistry().getService(EventListenerRegistry.class);
+        registry.appendListeners(EventType.POST_COMMIT_INSERT, this);
+        registry.appendListeners(EventType.POST_COMMIT_UPDATE, this);
+        registry.appendListeners(EventType.POST_COMMIT_DELETE, this);
+    }
+
+    @Override
+    public void onPostInsert(PostInsertEvent event) {
+        if (event.getEntity() instanceof Driver) {
+            saved((Driver) event.getEntity());
+        }
+    }
+
+    @Override
+    public void onPostUpdate(PostUpdateEvent event) {
+        if (event.getEntity() instanceof Driver) {
+            saved((Driver) event.getEntity());
+        }
+    }
+
+    @Override
+    public void onPostDelete(PostDeleteEvent event) {
+        if (event.getEntity() instanceof Driver) {
+            Long driverId = (Long) event.getId();
+            this.deliveryIndexLoader.onDriverCommitted(() -> {
+                this.cityCapacityTable.remove(driverId);
+                this.driverLeaderboard.onDriverDeleted(driverId);
+                this.driverDistanceBuckets.onDriverDeleted(driverId);
+            });
+        }
+    }
+
+    @Override
+    public void onPostInsertCommitFailed(PostInsertEvent event) {
+        //the driver was never committed, nothing to update
+    }
+
+    @Override
+    public void onPostUpdateCommitFailed(PostUpdateEvent event) {
+        //the change was never committed, nothing to update
+    }
+
+    @Override
+    public void onPostDeleteCommitFailed(PostDeleteEvent event) {
+        //the driver was never deleted, nothing to update
+    }
+
+    private void saved(Driver driver) {
+        this.deliveryIndexLoader.onDriverCommitted(() -> {
+            this.cityCapacityTable.update(driver);
+            this.driverLeaderboard.onDriverSaved(driver);
+            this.driverDistanceBuckets.onDriverSaved(driver);
+        });
+    }
+
+    @Override
+    public boolean requiresPostCommitHandling(EntityPersister persister) {
+        return Driver.class.equals(persister.getMappedClass());
+    }
+
+    /**
+     * still abstract in hibernate 5.4, replaced by requiresPostCommitHandling
+     */
+    @Override
+    @Deprecated
+    public boolean requiresPostCommitHanding(EntityPersister persister) {
+        return requiresPostCommitHandling(persister);
+    }
+}
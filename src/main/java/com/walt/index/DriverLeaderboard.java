@@ -0,0 +1,374 @@
+package com.walt.index;
+
+import com.walt.dao.DriverRepository;
+import com.walt.model.City;
+import com.walt.model.Delivery;
+import com.walt.model.Driver;
+import com.walt.model.DriverDistance;
+import com.walt.model.DriverDistanceImpl;
+import com.walt.model.DriverRank;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Materialized ranking of the drivers by their total distance, globally and per city, with the number of routes
+ * each driver drove.
+ * updated incrementally on every committed delivery, so a page of k drivers is read in O(offset + k)
+ * instead of aggregating the deliveries table on every report.
+ * readers share a lock that every update takes exclusively, so a page sees the board between two updates and
+ * never lists a driver twice or skips one. a stream reads the board a chunk at a time, see stream.
+ */
+@Component
+public class DriverLeaderboard implements DeliveryObserver, SnapshotSupport {
+
+    /**
+     * orders entries by total distance in descending order, ties by driver ID
+     */
+    private static final Comparator<Entry> BY_DISTANCE = (a, b) -> {
+        int cmp = Long.compare(b.totalDistance, a.totalDistance);
+        return cmp != 0 ? cmp : Long.compare(a.driver.getId(), b.driver.getId());
+    };
+
+    @Autowired
+    private DriverRepository driverRepository;
+
+    /**
+     * number of rows a stream copies from the board under one hold of the read lock
+     */
+    @Value("${walt.report.export-chunk-size:1000}")
+    private int exportChunkSize;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * guarded by lock
+     */
+    private Board board = new Board();
+
+    /**
+     * @param offset number of top drivers to skip
+     * @param limit max number of drivers to return
+     * @return drivers ranked by total distance in descending order
+     */
+    public List<DriverDistance> getRank(int offset, int limit) {
+        this.lock.readLock().lock();
+        try {
+            return page(this.board.global, offset, limit);
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param city rank only the drivers of the given city
+     * @param offset number of top drivers to skip
+     * @param limit max number of drivers to return
+     * @return drivers from city ranked by total distance in descending order
+     */
+    public List<DriverDistance> getRankByCity(City city, int offset, int limit) {
+        this.lock.readLock().lock();
+        try {
+            NavigableSet<Entry> cityRank = this.board.byCity.get(city.getId());
+            if (cityRank == null) {
+                return Collections.emptyList();
+            }
+            return page(cityRank, offset, limit);
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return all the drivers ranked by total distance in descending order, see stream
+     */
+    public Stream<DriverRank> streamRank() {
+        return stream(board -> board.global);
+    }
+
+    /**
+     * @param city rank only the drivers of the given city
+     * @return drivers from city ranked by total distance in descending order, see stream
+     */
+    public Stream<DriverRank> streamRankByCity(City city) {
+        Long cityId = city.getId();
+        return stream(board -> board.byCity.get(cityId));
+    }
+
+    /**
+     * every driver is ranked, drivers without deliveries with 0
+     */
+    @Override
+    public void rebuild(Iterable<Driver> drivers, Iterable<Delivery> deliveries) {
+        Map<Long, long[]> totals = totals(deliveries);
+        Board rebuilt = new Board();
+        for (Driver driver : drivers) {
+            long[] total = totals.getOrDefault(driver.getId(), new long[2]);
+            rebuilt.put(new Entry(driver, total[0], total[1]));
+        }
+        this.lock.writeLock().lock();
+        try {
+            this.board = rebuilt;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void rebuildDrivers(Collection<Driver> drivers, Iterable<Delivery> deliveries) {
+        Map<Long, long[]> totals = totals(deliveries);
+        this.lock.writeLock().lock();
+        try {
+            for (Driver driver : drivers) {
+                long[] total = totals.getOrDefault(driver.getId(), new long[2]);
+                this.board.remove(driver.getId());
+                this.board.put(new Entry(driver, total[0], total[1]));
+            }
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * the distance of a delivery is its leg of the route, the route is counted at its first stop
+     */
+    @Override
+    public void onDeliveryCreated(Delivery delivery) {
+        this.lock.writeLock().lock();
+        try {
+            Entry previous = this.board.remove(delivery.getDriver().getId());
+            if (previous == null) {
+                this.board.put(new Entry(delivery.getDriver(), Math.round(delivery.getDistance()),
+                        delivery.isFirstStop() ? 1 : 0));
+            } else {
+                this.board.put(new Entry(previous.driver, previous.totalDistance + Math.round(delivery.getDistance()),
+                        delivery.isFirstStop() ? previous.routes + 1 : previous.routes));
+            }
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * a driver was added or changed - rank the driver, in the driver's current city
+     * @param driver the driver as committed
+     */
+    public void onDriverSaved(Driver driver) {
+        this.lock.writeLock().lock();
+        try {
+            Entry previous = this.board.remove(driver.getId());
+            this.board.put(previous == null ? new Entry(driver, 0, 0)
+                    : new Entry(driver, previous.totalDistance, previous.routes));
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * a driver was deleted
+     * @param driverId ID of the deleted driver
+     */
+    public void onDriverDeleted(Long driverId) {
+        this.lock.writeLock().lock();
+        try {
+            this.board.remove(driverId);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void writeSnapshot(DataOutput out) throws IOException {
+        List<Entry> entries;
+        this.lock.readLock().lock();
+        try {
+            entries = new ArrayList<>(this.board.byDriver.values());
+        } finally {
+            this.lock.readLock().unlock();
+        }
+        out.writeInt(entries.size());
+        for (Entry entry : entries) {
+            out.writeLong(entry.driver.getId());
+            out.writeLong(entry.totalDistance);
+            out.writeLong(entry.routes);
+        }
+    }
+
+    /**
+     * the totals come from the snapshot, the drivers themselves are loaded by their IDs
+     */
+    @Override
+    public void readSnapshot(DataInput in) throws IOException {
+        Map<Long, long[]> totals = new HashMap<>();
+        for (int i = in.readInt(); i > 0; i--) {
+            totals.put(in.readLong(), new long[]{in.readLong(), in.readLong()});
+        }
+        Board restored = new Board();
+        for (Driver driver : this.driverRepository.findAllById(totals.keySet())) {
+            long[] total = totals.get(driver.getId());
+            restored.put(new Entry(driver, total[0], total[1]));
+        }
+        this.lock.writeLock().lock();
+        try {
+            this.board = restored;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return maps driver's ID to the total distance and number of routes of the driver's deliveries
+     */
+    private static Map<Long, long[]> totals(Iterable<Delivery> deliveries) {
+        Map<Long, long[]> totals = new HashMap<>();
+        for (Delivery delivery : deliveries) {
+            long[] total = totals.computeIfAbsent(delivery.getDriver().getId(), id -> new long[2]);
+            total[0] += Math.round(delivery.getDistance());
+            total[1] += delivery.isFirstStop() ? 1 : 0;
+        }
+        return totals;
+    }
+
+    private static List<DriverDistance> page(NavigableSet<Entry> rank, int offset, int limit) {
+        if (offset < 0 || limit < 0) {
+            throw new IllegalArgumentException("offset and limit must not be negative");
+        }
+        List<DriverDistance> reportList = new ArrayList<>();
+        Iterator<Entry> iterator = rank.iterator();
+        for (int i = 0; i < offset && iterator.hasNext(); i++) {
+            iterator.next();
+        }
+        while (reportList.size() < limit && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            reportList.add(new DriverDistanceImpl(entry.driver, entry.totalDistance, entry.routes));
+        }
+        return reportList;
+    }
+
+    /**
+     * the rows are copied as DriverRank rows walt.report.export-chunk-size at a time, each chunk under the read lock
+     * and continuing after the position of the last copied row - only a chunk is held however many drivers there
+     * are, and a long stream doesn't hold the updates back. a driver whose entry changes while the stream runs
+     * is listed at its old or its new position, so a driver whose total grows past the copied rows is left out
+     * @param rank picks the ranking to stream from the board, null for an empty one
+     */
+    private Stream<DriverRank> stream(Function<Board, NavigableSet<Entry>> rank) {
+        Iterator<DriverRank> rows = new Iterator<DriverRank>() {
+            private Iterator<DriverRank> chunk = Collections.emptyIterator();
+            private Entry last;
+            private boolean done;
+
+            @Override
+            public boolean hasNext() {
+                while (!this.chunk.hasNext() && !this.done) {
+                    List<DriverRank> copied = nextChunk();
+                    this.done = copied.size() < exportChunkSize;
+                    this.chunk = copied.iterator();
+                }
+                return this.chunk.hasNext();
+            }
+
+            @Override
+            public DriverRank next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return this.chunk.next();
+            }
+
+            private List<DriverRank> nextChunk() {
+                List<DriverRank> copied = new ArrayList<>(exportChunkSize);
+                lock.readLock().lock();
+                try {
+                    NavigableSet<Entry> ranked = rank.apply(board);
+                    if (ranked == null) {
+                        return copied;
+                    }
+                    NavigableSet<Entry> left = this.last == null ? ranked : ranked.tailSet(this.last, false);
+                    Iterator<Entry> entries = left.iterator();
+                    while (copied.size() < exportChunkSize && entries.hasNext()) {
+                        this.last = entries.next();
+                        copied.add(new DriverRank(this.last.driver.getId(), this.last.driver.getName(),
+                                this.last.totalDistance, this.last.routes));
+                    }
+                    return copied;
+                } finally {
+                    lock.readLock().unlock();
+                }
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(rows,
+                Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * a driver's total distance and routes at some point in time, with the driver's city at that time
+     */
+    private static final class Entry {
+        private final Driver driver;
+        private final Long cityId;
+        private final long totalDistance;
+        private final long routes;
+
+        private Entry(Driver driver, long totalDistance, long routes) {
+            this.driver = driver;
+            this.cityId = driver.getCity() == null ? null : driver.getCity().getId();
+            this.totalDistance = totalDistance;
+            this.routes = routes;
+        }
+    }
+
+    /**
+     * the current entry of every driver, and the global and per city rankings of these entries.
+     * a driver without a city is ranked globally only
+     */
+    private static final class Board {
+        private final Map<Long, Entry> byDriver = new HashMap<>();
+        private final NavigableSet<Entry> global = new TreeSet<>(BY_DISTANCE);
+        private final Map<Long, NavigableSet<Entry>> byCity = new HashMap<>();
+
+        private void put(Entry entry) {
+            this.global.add(entry);
+            if (entry.cityId != null) {
+                this.byCity.computeIfAbsent(entry.cityId, id -> new TreeSet<>(BY_DISTANCE)).add(entry);
+            }
+            this.byDriver.put(entry.driver.getId(), entry);
+        }
+
+        /**
+         * @return the removed entry of the driver, null if the driver has none
+         */
+        private Entry remove(Long driverId) {
+            Entry entry = this.byDriver.remove(driverId);
+            if (entry != null) {
+                this.global.remove(entry);
+                if (entry.cityId != null) {
+                    this.byCity.get(entry.cityId).remove(entry);
+                }
+            }
+            return entry;
+        }
+    }
+}
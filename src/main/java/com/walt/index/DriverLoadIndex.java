@@ -0,0 +1,107 @@
+package com.walt.index;
+
+import com.walt.model.Delivery;
+import com.walt.model.Driver;
+import org.springframework.stereotype.Component;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per driver counter of the deliveries the driver has made so far (the driver's history).
+ * counters are incremented atomically on every committed delivery.
+ */
+@Component
+public class DriverLoadIndex implements DeliveryObserver, SnapshotSupport {
+
+    /**
+     * maps driver's ID to the number of deliveries this driver has
+     */
+    private volatile ConcurrentMap<Long, AtomicLong> deliveryCounts = new ConcurrentHashMap<>();
+
+    /**
+     * @param driver driver to check
+     * @return number of deliveries the driver has, 0 if none
+     */
+    public long getDeliveryCount(Driver driver) {
+        AtomicLong count = this.deliveryCounts.get(driver.getId());
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * @param drivers list of candidate drivers
+     * @return the driver with the lowest number of deliveries, null if drivers is empty
+     */
+    public Driver getLeastBusy(List<Driver> drivers) {
+        Driver leastBusyDriver = null;
+        long minDeliveries = Long.MAX_VALUE;
+        for (Driver driver : drivers) {
+            long deliveries = getDeliveryCount(driver);
+            if (deliveries < minDeliveries) {
+                minDeliveries = deliveries;
+                leastBusyDriver = driver;
+            }
+        }
+        return leastBusyDriver;
+    }
+
+    @Override
+    public void rebuild(Iterable<Driver> drivers, Iterable<Delivery> deliveries) {
+        ConcurrentMap<Long, AtomicLong> counts = new ConcurrentHashMap<>();
+        for (Delivery delivery : deliveries) {
+            increment(counts, delivery);
+        }
+        this.deliveryCounts = counts;
+    }
+
+    @Override
+    public void rebuildDrivers(Collection<Driver> drivers, Iterable<Delivery> deliveries) {
+        Map<Long, AtomicLong> counts = new HashMap<>();
+        for (Driver driver : drivers) {
+            counts.put(driver.getId(), new AtomicLong());
+        }
+        for (Delivery delivery : deliveries) {
+            AtomicLong count = counts.get(delivery.getDriver().getId());
+            if (count != null) {
+                count.incrementAndGet();
+            }
+        }
+        this.deliveryCounts.putAll(counts);
+    }
+
+    @Override
+    public void onDeliveryCreated(Delivery delivery) {
+        increment(this.deliveryCounts, delivery);
+    }
+
+    @Override
+    public void writeSnapshot(DataOutput out) throws IOException {
+        Map<Long, AtomicLong> counts = new HashMap<>(this.deliveryCounts);
+        out.writeInt(counts.size());
+        for (Map.Entry<Long, AtomicLong> count : counts.entrySet()) {
+            out.writeLong(count.getKey());
+            out.writeLong(count.getValue().get());
+        }
+    }
+
+    @Override
+    public void readSnapshot(DataInput in) throws IOException {
+        ConcurrentMap<Long, AtomicLong> counts = new ConcurrentHashMap<>();
+        for (int i = in.readInt(); i > 0; i--) {
+            counts.put(in.readLong(), new AtomicLong(in.readLong()));
+        }
+        this.deliveryCounts = counts;
+    }
+
+    private static void increment(ConcurrentMap<Long, AtomicLong> counts, Delivery delivery) {
+        counts.computeIfAbsent(delivery.getDriver().getId(), id -> new AtomicLong()).incrementAndGet();
+    }
+}
@@ -0,0 +1,238 @@
+package com.walt.index;
+
+import com.walt.dao.DriverLocationRepository;
+import com.walt.dao.DriverRepository;
+import com.walt.distance.DistanceCalculator;
+import com.walt.model.City;
+import com.walt.model.Driver;
+import com.walt.model.DriverLocation;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Grid of the drivers' last known positions, per city.
+ * each cell covers CELL_DEGREES x CELL_DEGREES, the nearest drivers to a point are found by scanning rings of
+ * cells around the point's cell, so only the drivers around the point are looked at.
+ */
+@Component
+public class DriverLocationIndex {
+
+    /**
+     * size of a grid cell in degrees, about 1.1 Km of latitude
+     */
+    private static final double CELL_DEGREES = 0.01;
+
+    /**
+     * Km in a degree of latitude
+     */
+    private static final double KM_PER_DEGREE = 111.195;
+
+    @Autowired
+    private DriverRepository driverRepository;
+
+    @Autowired
+    private DriverLocationRepository driverLocationRepository;
+
+    /**
+     * maps driver's ID to the driver's current position
+     */
+    private final ConcurrentMap<Long, Position> positions = new ConcurrentHashMap<>();
+
+    /**
+     * maps city ID to the grid of that city
+     */
+    private final ConcurrentMap<Long, Grid> grids = new ConcurrentHashMap<>();
+
+    /**
+     * load the positions of all the drivers, at startup and periodically to correct any drift
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    @Scheduled(initialDelayString = "${walt.index.reconcile-interval-ms}",
+            fixedDelayString = "${walt.index.reconcile-interval-ms}")
+    public void load() {
+        Map<Long, DriverLocation> locations = new HashMap<>();
+        for (DriverLocation location : this.driverLocationRepository.findAll()) {
+            locations.put(location.getDriverId(), location);
+        }
+        for (Driver driver : this.driverRepository.findAll()) {
+            update(driver, locations.get(driver.getId()));
+        }
+    }
+
+    /**
+     * put the driver in the cell of the driver's last known position, or remove the driver if it has no position
+     * @param driver driver that moved
+     * @param location the driver's position, null if unknown
+     */
+    public void update(Driver driver, DriverLocation location) {
+        Position previous;
+        if (location == null || driver.getCity() == null) {
+            previous = this.positions.remove(driver.getId());
+        } else {
+            Position position = new Position(driver.getCity().getId(), location.getLatitude(), location.getLongitude());
+            previous = this.positions.put(driver.getId(), position);
+            this.grids.computeIfAbsent(position.cityId, id -> new Grid()).add(position.cell, driver.getId());
+        }
+        if (previous != null && (!this.positions.containsKey(driver.getId())
+                || !previous.sameCell(this.positions.get(driver.getId())))) {
+            this.grids.get(previous.cityId).remove(previous.cell, driver.getId());
+        }
+    }
+
+    /**
+     * @param driverId driver to measure
+     * @param latitude latitude of the point
+     * @param longitude longitude of the point
+     * @return distance in Km from the driver's last known position to the point, null if the position is unknown
+     */
+    public Double getDistance(Long driverId, double latitude, double longitude) {
+        Position position = this.positions.get(driverId);
+        return position == null ? null
+                : DistanceCalculator.haversine(latitude, longitude, position.latitude, position.longitude);
+    }
+
+    /**
+     * find the nearest drivers to a point, out of the given candidates
+     * @param city city of the drivers
+     * @param latitude latitude of the point
+     * @param longitude longitude of the point
+     * @param k max number of drivers to find
+     * @param candidates IDs of the drivers that may be returned, drivers without a position are never returned
+     * @return up to k driver IDs, nearest first
+     */
+    public List<Long> findNearest(City city, double latitude, double longitude, int k, Set<Long> candidates) {
+        Grid grid = this.grids.get(city.getId());
+        if (grid == null || k <= 0) {
+            return Collections.emptyList();
+        }
+        long centerRow = row(latitude);
+        long centerColumn = column(longitude);
+        //a cell in ring r + 1 is at least r cells away from the point, longitude degrees are the shorter ones
+        double ringKm = CELL_DEGREES * KM_PER_DEGREE * Math.max(0.1, Math.cos(Math.toRadians(latitude)));
+
+        List<Neighbour> found = new ArrayList<>();
+        for (int ring = 0; ; ring++) {
+            if (8L * ring > grid.cells.size()) {
+                //the ring has more cells than the whole grid, look at every cell outside the scanned square instead
+                for (Map.Entry<Long, Set<Long>> cell : grid.cells.entrySet()) {
+                    long row = cell.getKey() >> 32;
+                    long column = (int) (long) cell.getKey();
+                    if (Math.abs(row - centerRow) >= ring || Math.abs(column - centerColumn) >= ring) {
+                        addCandidates(cell.getValue(), latitude, longitude, candidates, found);
+                    }
+                }
+                break;
+            }
+            for (long row = centerRow - ring; row <= centerRow + ring; row++) {
+                boolean edgeRow = row == centerRow - ring || row == centerRow + ring;
+                long step = edgeRow ? 1 : 2L * ring;
+                for (long column = centerColumn - ring; column <= centerColumn + ring; column += step) {
+                    Set<Long> cell = grid.cells.get(cell(row, column));
+                    if (cell != null) {
+                        addCandidates(cell, latitude, longitude, candidates, found);
+                    }
+                }
+            }
+            if (found.size() >= k) {
+                found.sort((a, b) -> Double.compare(a.distance, b.distance));
+                if (found.get(k - 1).distance <= ring * ringKm) { //no closer driver in the next rings
+                    break;
+                }
+            }
+        }
+
+        found.sort((a, b) -> Double.compare(a.distance, b.distance));
+        List<Long> nearest = new ArrayList<>(Math.min(k, found.size()));
+        for (int i = 0; i < k && i < found.size(); i++) {
+            nearest.add(found.get(i).driverId);
+        }
+        return nearest;
+    }
+
+    private void addCandidates(Set<Long> cell, double latitude, double longitude, Set<Long> candidates,
+                               List<Neighbour> found) {
+        for (Long driverId : cell) {
+            Position position = this.positions.get(driverId);
+            if (position != null && candidates.contains(driverId)) {
+                found.add(new Neighbour(driverId, DistanceCalculator.haversine(
+                        latitude, longitude, position.latitude, position.longitude)));
+            }
+        }
+    }
+
+    private static long row(double latitude) {
+        return (long) Math.floor(latitude / CELL_DEGREES);
+    }
+
+    private static long column(double longitude) {
+        return (long) Math.floor(longitude / CELL_DEGREES);
+    }
+
+    private static long cell(long row, long column) {
+        return (row << 32) ^ (column & 0xffffffffL);
+    }
+
+    /**
+     * a driver's position and grid cell
+     */
+    private static final class Position {
+        private final Long cityId;
+        private final double latitude;
+        private final double longitude;
+        private final long cell;
+
+        private Position(Long cityId, double latitude, double longitude) {
+            this.cityId = cityId;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.cell = cell(row(latitude), column(longitude));
+        }
+
+        private boolean sameCell(Position other) {
+            return other != null && this.cityId.equals(other.cityId) && this.cell == other.cell;
+        }
+    }
+
+    /**
+     * the drivers of a city, by grid cell
+     */
+    private static final class Grid {
+        private final ConcurrentMap<Long, Set<Long>> cells = new ConcurrentHashMap<>();
+
+        private void add(long cell, Long driverId) {
+            this.cells.computeIfAbsent(cell, c -> ConcurrentHashMap.newKeySet()).add(driverId);
+        }
+
+        private void remove(long cell, Long driverId) {
+            Set<Long> drivers = this.cells.get(cell);
+            if (drivers != null) {
+                drivers.remove(driverId);
+            }
+        }
+    }
+
+    /**
+     * a driver found near the searched point
+     */
+    private static final class Neighbour {
+        private final Long driverId;
+        private final double distance;
+
+        private Neighbour(Long driverId, double distance) {
+            this.driverId = driverId;
+            this.distance = distance;
+        }
+    }
+}
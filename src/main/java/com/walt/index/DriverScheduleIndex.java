@@ -0,0 +1,348 @@
+package com.walt.index;
+
+import com.walt.model.Delivery;
+import com.walt.model.Driver;
+import org.springframework.stereotype.Component;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Per driver schedule of the time windows the driver is busy with deliveries.
+ * answers "can this driver take another delivery in [start, start + duration)" in O(log n) without scanning the
+ * deliveries table - a driver carries up to Driver.getMaxConcurrentOrders deliveries at the same time.
+ * a driver is reserved for a window with tryBook, which is atomic - two threads can never reserve
+ * the same driver beyond the driver's capacity.
+ */
+@Component
+public class DriverScheduleIndex implements DeliveryObserver, SnapshotSupport {
+
+    /**
+     * maps driver's ID to the driver's busy windows
+     */
+    private volatile ConcurrentMap<Long, DriverSchedule> schedules = new ConcurrentHashMap<>();
+
+    /**
+     * reservations that were not committed yet (driver's ID to start and end of each reservation), kept so a
+     * rebuild from the repository won't drop them
+     */
+    private final ConcurrentMap<Long, List<long[]>> pendingWindows = new ConcurrentHashMap<>();
+
+    /**
+     * bookings share the read lock, a rebuild takes the write lock while it swaps the state
+     */
+    private final ReadWriteLock rebuildLock = new ReentrantReadWriteLock();
+
+    /**
+     * @param driver driver to check
+     * @param deliveryTime wanted time for the delivery
+     * @param durationMinutes duration of the delivery
+     * @return true - if the driver carries less than its max concurrent orders all through the window,
+     * false otherwise.
+     */
+    public boolean isAvailable(Driver driver, Date deliveryTime, int durationMinutes) {
+        DriverSchedule schedule = this.schedules.get(driver.getId());
+        long start = deliveryTime.getTime();
+        return schedule == null || schedule.isFree(start, end(start, durationMinutes), driver.getMaxConcurrentOrders());
+    }
+
+    /**
+     * reserve the driver for a delivery
+     * @param driver driver to reserve
+     * @param deliveryTime time of the delivery
+     * @param durationMinutes duration of the delivery
+     * @return true if the driver was reserved, false if the driver is already at full capacity in the window
+     */
+    public boolean tryBook(Driver driver, Date deliveryTime, int durationMinutes) {
+        long start = deliveryTime.getTime();
+        long end = end(start, durationMinutes);
+        this.rebuildLock.readLock().lock();
+        try {
+            if (!schedule(this.schedules, driver.getId()).tryAdd(start, end, driver.getMaxConcurrentOrders())) {
+                return false;
+            }
+            this.pendingWindows.computeIfAbsent(driver.getId(), id -> Collections.synchronizedList(new ArrayList<>()))
+                    .add(new long[]{start, end});
+            return true;
+        } finally {
+            this.rebuildLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * cancel a reservation made by tryBook, when its delivery is not going to be saved
+     * @param driver the reserved driver
+     * @param deliveryTime time of the delivery
+     * @param durationMinutes duration of the delivery
+     */
+    public void release(Driver driver, Date deliveryTime, int durationMinutes) {
+        long start = deliveryTime.getTime();
+        long end = end(start, durationMinutes);
+        this.rebuildLock.readLock().lock();
+        try {
+            if (removePending(driver.getId(), start, end)) {
+                schedule(this.schedules, driver.getId()).add(start, end, -1);
+            }
+        } finally {
+            this.rebuildLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * the reservations still pending are added on top of the deliveries. a reservation whose delivery committed
+     * just before the deliveries were read is counted twice until the next rebuild - the driver looks busier than
+     * it is, never free
+     */
+    @Override
+    public void rebuild(Iterable<Driver> drivers, Iterable<Delivery> deliveries) {
+        ConcurrentMap<Long, DriverSchedule> rebuilt = new ConcurrentHashMap<>();
+        for (Delivery delivery : deliveries) {
+            if (delivery.isFirstStop()) {
+                schedule(rebuilt, delivery.getDriver().getId()).add(delivery.getBookedTime().getTime(),
+                        delivery.getEndTime().getTime(), 1);
+            }
+        }
+        this.rebuildLock.writeLock().lock();
+        try {
+            addPending(rebuilt, this.pendingWindows.keySet());
+            this.schedules = rebuilt;
+        } finally {
+            this.rebuildLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void rebuildDrivers(Collection<Driver> drivers, Iterable<Delivery> deliveries) {
+        ConcurrentMap<Long, DriverSchedule> rebuilt = new ConcurrentHashMap<>();
+        List<Long> driverIds = new ArrayList<>();
+        for (Driver driver : drivers) {
+            rebuilt.put(driver.getId(), new DriverSchedule());
+            driverIds.add(driver.getId());
+        }
+        for (Delivery delivery : deliveries) {
+            DriverSchedule schedule = rebuilt.get(delivery.getDriver().getId());
+            if (schedule != null && delivery.isFirstStop()) {
+                schedule.add(delivery.getBookedTime().getTime(), delivery.getEndTime().getTime(), 1);
+            }
+        }
+        this.rebuildLock.writeLock().lock();
+        try {
+            addPending(rebuilt, driverIds);
+            this.schedules.putAll(rebuilt);
+        } finally {
+            this.rebuildLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * a delivery reserved by tryBook is already in the schedule, any other delivery is added.
+     * a bundle books its driver once, through its first stop
+     */
+    @Override
+    public void onDeliveryCreated(Delivery delivery) {
+        if (!delivery.isFirstStop()) {
+            return;
+        }
+        Long driverId = delivery.getDriver().getId();
+        long start = delivery.getBookedTime().getTime();
+        long end = delivery.getEndTime().getTime();
+        this.rebuildLock.readLock().lock();
+        try {
+            if (!removePending(driverId, start, end)) {
+                schedule(this.schedules, driverId).add(start, end, 1);
+            }
+        } finally {
+            this.rebuildLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * only committed windows are written, reservations don't outlive the process that made them
+     */
+    @Override
+    public void writeSnapshot(DataOutput out) throws IOException {
+        Map<Long, DriverSchedule> current = new HashMap<>(this.schedules);
+        out.writeInt(current.size());
+        for (Map.Entry<Long, DriverSchedule> schedule : current.entrySet()) {
+            List<long[]> committed = schedule.getValue().changes(pending(schedule.getKey()));
+            out.writeLong(schedule.getKey());
+            out.writeInt(committed.size());
+            for (long[] change : committed) {
+                out.writeLong(change[0]);
+                out.writeInt((int) change[1]);
+            }
+        }
+    }
+
+    @Override
+    public void readSnapshot(DataInput in) throws IOException {
+        ConcurrentMap<Long, DriverSchedule> restored = new ConcurrentHashMap<>();
+        for (int drivers = in.readInt(); drivers > 0; drivers--) {
+            DriverSchedule schedule = schedule(restored, in.readLong());
+            for (int changes = in.readInt(); changes > 0; changes--) {
+                schedule.busy.put(in.readLong(), in.readInt());
+            }
+        }
+        this.rebuildLock.writeLock().lock();
+        try {
+            addPending(restored, this.pendingWindows.keySet());
+            this.schedules = restored;
+        } finally {
+            this.rebuildLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * add the reservations of the given drivers on top of rebuilt schedules, must hold the write lock
+     */
+    private void addPending(ConcurrentMap<Long, DriverSchedule> rebuilt, Collection<Long> driverIds) {
+        for (Long driverId : driverIds) {
+            for (long[] window : pending(driverId)) {
+                schedule(rebuilt, driverId).add(window[0], window[1], 1);
+            }
+        }
+    }
+
+    /**
+     * @return a copy of the driver's reservations
+     */
+    private List<long[]> pending(Long driverId) {
+        List<long[]> windows = this.pendingWindows.get(driverId);
+        if (windows == null) {
+            return Collections.emptyList();
+        }
+        synchronized (windows) {
+            return new ArrayList<>(windows);
+        }
+    }
+
+    private boolean removePending(Long driverId, long start, long end) {
+        List<long[]> windows = this.pendingWindows.get(driverId);
+        if (windows == null) {
+            return false;
+        }
+        synchronized (windows) {
+            for (Iterator<long[]> it = windows.iterator(); it.hasNext(); ) {
+                long[] window = it.next();
+                if (window[0] == start && window[1] == end) {
+                    it.remove();
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static DriverSchedule schedule(ConcurrentMap<Long, DriverSchedule> schedules, Long driverId) {
+        return schedules.computeIfAbsent(driverId, id -> new DriverSchedule());
+    }
+
+    private static long end(long start, int durationMinutes) {
+        if (durationMinutes <= 0) {
+            throw new IllegalArgumentException("duration must be positive");
+        }
+        return start + TimeUnit.MINUTES.toMillis(durationMinutes);
+    }
+
+    /**
+     * number of deliveries a single driver carries over time, as a step function
+     */
+    private static final class DriverSchedule {
+
+        /**
+         * maps every point the number changes at to the number of deliveries from that point until the next one,
+         * no entry means no deliveries
+         */
+        private final TreeMap<Long, Integer> busy = new TreeMap<>();
+
+        /**
+         * only the step the window starts in and the steps starting inside it are looked at
+         */
+        private synchronized boolean isFree(long start, long end, int capacity) {
+            Map.Entry<Long, Integer> first = this.busy.floorEntry(start);
+            if (first != null && first.getValue() >= capacity) {
+                return false;
+            }
+            for (Integer count : this.busy.subMap(start, false, end, false).values()) {
+                if (count >= capacity) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private synchronized boolean tryAdd(long start, long end, int capacity) {
+            if (!isFree(start, end, capacity)) {
+                return false;
+            }
+            add(start, end, 1);
+            return true;
+        }
+
+        /**
+         * add delta deliveries to [start, end)
+         */
+        private synchronized void add(long start, long end, int delta) {
+            split(start);
+            split(end);
+            for (Map.Entry<Long, Integer> step : this.busy.subMap(start, true, end, false).entrySet()) {
+                step.setValue(step.getValue() + delta);
+            }
+            join(start);
+            join(end);
+        }
+
+        /**
+         * make point a step of its own
+         */
+        private void split(long point) {
+            if (!this.busy.containsKey(point)) {
+                Map.Entry<Long, Integer> before = this.busy.lowerEntry(point);
+                this.busy.put(point, before == null ? 0 : before.getValue());
+            }
+        }
+
+        /**
+         * drop point if its step has the same number as the step before it
+         */
+        private void join(long point) {
+            Integer count = this.busy.get(point);
+            Map.Entry<Long, Integer> before = this.busy.lowerEntry(point);
+            if (count != null && (before == null ? count == 0 : before.getValue().equals(count))) {
+                this.busy.remove(point);
+            }
+        }
+
+        /**
+         * @param pending reserved windows to leave out
+         * @return start and number of every step, without the reservations
+         */
+        private synchronized List<long[]> changes(List<long[]> pending) {
+            DriverSchedule committed = new DriverSchedule();
+            committed.busy.putAll(this.busy);
+            for (long[] window : pending) {
+                committed.add(window[0], window[1], -1);
+            }
+            List<long[]> changes = new ArrayList<>(committed.busy.size());
+            for (Map.Entry<Long, Integer> step : committed.busy.entrySet()) {
+                changes.add(new long[]{step.getKey(), step.getValue()});
+            }
+            return changes;
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.walt.index;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A DeliveryObserver whose state can be saved to a compact binary snapshot and restored from it,
+ * so it can be brought back without reading the deliveries table.
+ * the journal takes the snapshot while no delivery is being applied.
+ */
+public interface SnapshotSupport {
+
+    /**
+     * @param out snapshot to write the whole state to
+     */
+    void writeSnapshot(DataOutput out) throws IOException;
+
+    /**
+     * replace the whole state with the one written by writeSnapshot
+     * @param in snapshot to read the state from
+     */
+    void readSnapshot(DataInput in) throws IOException;
+}
@@ -0,0 +1,172 @@
+package com.walt.intake;
+
+import com.walt.WaltService;
+import com.walt.exceptions.IntakeQueueFullException;
+import com.walt.exceptions.IntakeStoppedException;
+import com.walt.model.Customer;
+import com.walt.model.Delivery;
+import com.walt.model.Restaurant;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Asynchronous order intake.
+ * every city belongs to one partition, each partition has a bounded queue and a single worker, so the orders
+ * of a city are assigned one after the other while different partitions are assigned in parallel.
+ * when a partition's queue is full the order waits up to walt.intake.offer-timeout-ms and is then rejected.
+ * once stopped, new orders are rejected and the orders still queued fail with IntakeStoppedException.
+ */
+@Component
+public class OrderIntake {
+
+    private static final Logger log = LoggerFactory.getLogger(OrderIntake.class);
+
+    @Autowired
+    private WaltService waltService;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${walt.intake.partitions:4}")
+    private int partitionCount;
+
+    @Value("${walt.intake.queue-capacity:1000}")
+    private int queueCapacity;
+
+    @Value("${walt.intake.offer-timeout-ms:100}")
+    private long offerTimeoutMs;
+
+    private final List<Partition> partitions = new ArrayList<>();
+
+    private Timer waitTimer;
+
+    private Counter rejectedCounter;
+
+    private volatile boolean stopped;
+
+    @PostConstruct
+    public void start() {
+        this.waitTimer = this.meterRegistry.timer("walt.intake.wait");
+        this.rejectedCounter = this.meterRegistry.counter("walt.intake.rejected");
+        for (int i = 0; i < this.partitionCount; i++) {
+            Partition partition = new Partition(i, this.queueCapacity);
+            Gauge.builder("walt.intake.queue.depth", partition.queue, BlockingQueue::size)
+                    .tag("partition", String.valueOf(i))
+                    .register(this.meterRegistry);
+            this.partitions.add(partition);
+            partition.worker.start();
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        this.stopped = true;
+        for (Partition partition : this.partitions) {
+            partition.worker.interrupt();
+        }
+    }
+
+    /**
+     * queue an order for its city's worker
+     * @param customer customer to create a delivery for
+     * @param restaurant the delivery is from restaurant
+     * @param deliveryTime given time for delivery
+     * @return completes with the new delivery, or exceptionally with the error of createOrderAndAssignDriver,
+     * with IntakeQueueFullException if the city's queue stayed full, or with IntakeStoppedException if the intake
+     * is stopped
+     */
+    public CompletableFuture<Delivery> submit(Customer customer, Restaurant restaurant, Date deliveryTime) {
+        PendingOrder order = new PendingOrder(customer, restaurant, deliveryTime);
+        if (this.stopped) {
+            order.result.completeExceptionally(new IntakeStoppedException());
+            return order.result;
+        }
+        Partition partition = this.partitions.get(
+                (int) Math.floorMod(customer.getCity().getId(), (long) this.partitions.size()));
+        try {
+            if (!partition.queue.offer(order, this.offerTimeoutMs, TimeUnit.MILLISECONDS)) {
+                this.rejectedCounter.increment();
+                order.result.completeExceptionally(new IntakeQueueFullException());
+            } else if (this.stopped && partition.queue.remove(order)) { //stopped while queueing, no worker will take it
+                order.result.completeExceptionally(new IntakeStoppedException());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            order.result.completeExceptionally(e);
+        }
+        return order.result;
+    }
+
+    private void assign(PendingOrder order) {
+        this.waitTimer.record(System.nanoTime() - order.queuedAt, TimeUnit.NANOSECONDS);
+        try {
+            order.result.complete(this.waltService.createOrderAndAssignDriver(
+                    order.customer, order.restaurant, order.deliveryTime));
+        } catch (Exception e) {
+            order.result.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * an order waiting in a partition's queue
+     */
+    private static final class PendingOrder {
+        private final Customer customer;
+        private final Restaurant restaurant;
+        private final Date deliveryTime;
+        private final long queuedAt = System.nanoTime();
+        private final CompletableFuture<Delivery> result = new CompletableFuture<>();
+
+        private PendingOrder(Customer customer, Restaurant restaurant, Date deliveryTime) {
+            this.customer = customer;
+            this.restaurant = restaurant;
+            this.deliveryTime = deliveryTime;
+        }
+    }
+
+    /**
+     * a bounded queue of orders and the single worker that assigns them
+     */
+    private final class Partition {
+        private final BlockingQueue<PendingOrder> queue;
+        private final Thread worker;
+
+        private Partition(int index, int capacity) {
+            this.queue = new ArrayBlockingQueue<>(capacity);
+            this.worker = new Thread(this::run, "walt-intake-" + index);
+            this.worker.setDaemon(true);
+        }
+
+        private void run() {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    assign(this.queue.take());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            PendingOrder order;
+            while ((order = this.queue.poll()) != null) { //stopped - fail the orders that were not assigned
+                order.result.completeExceptionally(new IntakeStoppedException());
+            }
+            log.info("{} stopped", Thread.currentThread().getName());
+        }
+    }
+}
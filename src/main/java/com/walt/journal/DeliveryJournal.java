@@ -0,0 +1,454 @@
+package com.walt.journal;
+
+import com.walt.dao.DeliveryRepository;
+import com.walt.dao.DriverRepository;
+import com.walt.index.DeliveryObserver;
+import com.walt.index.SnapshotSupport;
+import com.walt.model.Delivery;
+import com.walt.model.DeliveryBundle;
+import com.walt.model.Driver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Append-only log of the committed deliveries with periodic snapshots of the delivery observers.
+ * every delivery is appended to a memory-mapped log file as a fixed size record, and every
+ * walt.journal.snapshot-interval-ms the state of every observer is written to a binary snapshot and a new log
+ * is started. at startup the latest snapshot is read and only the log written after it is replayed,
+ * instead of loading every delivery from the repository.
+ * the snapshot also holds the highest delivery ID the observers have, the deliveries after it the log doesn't have -
+ * committed by another node, while this node was down or just before a crash cut off their records - are read
+ * from the repository by ID. a delivery below that ID - one that committed late, or one of another node that took
+ * its block of IDs earlier - is only picked up by the next reconcile.
+ * the log is written through the page cache - it survives a crash of the process, not of the machine.
+ */
+@Component
+public class DeliveryJournal {
+
+    private static final Logger log = LoggerFactory.getLogger(DeliveryJournal.class);
+
+    private static final int SNAPSHOT_MAGIC = 0x57414c54;
+
+    private static final int SNAPSHOT_VERSION = 7;
+
+    /**
+     * marker, delivery ID, driver ID, delivery time, duration in minutes, distance, booked time, booked minutes
+     */
+    private static final int RECORD_BYTES = 1 + 8 + 8 + 8 + 4 + 8 + 8 + 4;
+
+    /**
+     * written last, so a record that was cut in the middle is never read
+     */
+    private static final byte RECORD_MARKER = 1;
+
+    /**
+     * marker of a delivery that is not the first stop of its route
+     */
+    private static final byte NEXT_STOP_MARKER = 2;
+
+    @Autowired
+    private List<DeliveryObserver> observers;
+
+    @Autowired
+    private DriverRepository driverRepository;
+
+    @Autowired
+    private DeliveryRepository deliveryRepository;
+
+    @Value("${walt.journal.enabled:false}")
+    private boolean enabled;
+
+    @Value("${walt.journal.directory:journal}")
+    private String directory;
+
+    @Value("${walt.journal.segment-bytes:67108864}")
+    private int segmentBytes;
+
+    /**
+     * appending deliveries share the read lock, a snapshot takes the write lock so it sees no half applied delivery
+     */
+    private final ReadWriteLock snapshotLock = new ReentrantReadWriteLock();
+
+    private long generation;
+
+    private FileChannel channel;
+
+    private MappedByteBuffer mapped;
+
+    /**
+     * offset of the mapped region in the log file
+     */
+    private long mappedStart;
+
+    /**
+     * offset of the next record in the log file
+     */
+    private long position;
+
+    /**
+     * highest ID of a delivery the observers have - every delivery after it is surely missing from them
+     */
+    private final AtomicLong lastDeliveryId = new AtomicLong();
+
+    private volatile long replayedOnRestore = -1;
+
+    private volatile long caughtUpOnRestore = -1;
+
+    @PostConstruct
+    public void open() throws IOException {
+        if (this.enabled) {
+            Files.createDirectories(Paths.get(this.directory));
+        }
+    }
+
+    @PreDestroy
+    public synchronized void close() throws IOException {
+        if (this.channel != null) {
+            this.mapped.force();
+            this.channel.close();
+            this.channel = null;
+        }
+    }
+
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    /**
+     * @return number of deliveries replayed from the log by the last restore, -1 if nothing was restored
+     */
+    public long getReplayedOnRestore() {
+        return this.replayedOnRestore;
+    }
+
+    /**
+     * @return number of deliveries read from the repository by the last restore, -1 if nothing was restored
+     */
+    public long getCaughtUpOnRestore() {
+        return this.caughtUpOnRestore;
+    }
+
+    /**
+     * the observers were rebuilt from the repository, a restore from the next snapshot reads the deliveries
+     * after these only
+     * @param deliveries the deliveries the observers were rebuilt from
+     */
+    public void loaded(List<Delivery> deliveries) {
+        for (Delivery delivery : deliveries) {
+            this.lastDeliveryId.accumulateAndGet(delivery.getId(), Math::max);
+        }
+    }
+
+    /**
+     * log a committed delivery and apply it to the observers, as one step a snapshot can't split
+     * @param delivery the committed delivery
+     * @param apply applies the delivery to the observers
+     */
+    public void record(Delivery delivery, Runnable apply) {
+        this.snapshotLock.readLock().lock();
+        try {
+            if (this.enabled) {
+                append(delivery);
+            }
+            apply.run();
+            this.lastDeliveryId.accumulateAndGet(delivery.getId(), Math::max);
+        } finally {
+            this.snapshotLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * write the state of every observer to a new snapshot and start a new log.
+     * the snapshot is written to a temporary file, forced to disk and renamed over the previous one before the new
+     * log is started - a crash at any point leaves a whole snapshot and the log that follows it
+     */
+    @Scheduled(initialDelayString = "${walt.journal.snapshot-interval-ms:600000}",
+            fixedDelayString = "${walt.journal.snapshot-interval-ms:600000}")
+    public void snapshot() {
+        if (!this.enabled || !allObserversSupportSnapshots()) {
+            return;
+        }
+        this.snapshotLock.writeLock().lock();
+        try {
+            long next = this.generation + 1;
+            Path tmp = snapshotPath().resolveSibling("snapshot.tmp");
+            try (FileChannel file = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+                 DataOutputStream out = new DataOutputStream(
+                         new BufferedOutputStream(Channels.newOutputStream(file)))) {
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeInt(SNAPSHOT_VERSION);
+                out.writeLong(next);
+                out.writeLong(this.lastDeliveryId.get());
+                out.writeInt(this.observers.size());
+                for (DeliveryObserver observer : this.observers) {
+                    ByteArrayOutputStream section = new ByteArrayOutputStream();
+                    ((SnapshotSupport) observer).writeSnapshot(new DataOutputStream(section));
+                    out.writeUTF(observer.getClass().getName());
+                    out.writeInt(section.size());
+                    section.writeTo(out);
+                }
+                out.flush();
+                file.force(true);
+            }
+            Files.move(tmp, snapshotPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            openLog(next, 0);
+            Files.deleteIfExists(logPath(this.generation));
+            this.generation = next;
+            log.info("snapshot of generation {} written", next);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            this.snapshotLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * restore every observer from the latest snapshot, replay the log written after it and apply the deliveries
+     * after the snapshot's last delivery ID the log doesn't have
+     * @return false if there is no usable snapshot, the observers must then be loaded from the repository
+     */
+    public boolean restore() {
+        if (!this.enabled || !Files.exists(snapshotPath()) || !allObserversSupportSnapshots()) {
+            return false;
+        }
+        long started = System.nanoTime();
+        this.snapshotLock.writeLock().lock();
+        try {
+            long snapshotGeneration = readSnapshot();
+            if (snapshotGeneration < 0) {
+                return false;
+            }
+            long snapshotDeliveryId = this.lastDeliveryId.get();
+            Set<Long> replayedIds = new HashSet<>();
+            long replayed = replay(snapshotGeneration, replayedIds);
+            long caughtUp = catchUp(snapshotDeliveryId, replayedIds);
+            this.replayedOnRestore = replayed;
+            this.caughtUpOnRestore = caughtUp;
+            log.info("restored snapshot of generation {}, replayed {} deliveries and read {} from the repository "
+                    + "in {} ms", snapshotGeneration, replayed, caughtUp, (System.nanoTime() - started) / 1_000_000);
+            return true;
+        } catch (IOException e) {
+            log.warn("can't restore from the journal, loading from the repository", e);
+            return false;
+        } finally {
+            this.snapshotLock.writeLock().unlock();
+        }
+    }
+
+    private boolean allObserversSupportSnapshots() {
+        for (DeliveryObserver observer : this.observers) {
+            if (!(observer instanceof SnapshotSupport)) {
+                log.warn("{} doesn't support snapshots, the journal is not used", observer.getClass().getName());
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return generation of the log that follows the snapshot, -1 if the snapshot can't be used.
+     * the snapshot's last delivery ID is set as lastDeliveryId
+     */
+    private long readSnapshot() throws IOException {
+        Map<String, byte[]> sections = new HashMap<>();
+        long snapshotGeneration;
+        long snapshotDeliveryId;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotPath())))) {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+                log.warn("unknown snapshot format, loading from the repository");
+                return -1;
+            }
+            snapshotGeneration = in.readLong();
+            snapshotDeliveryId = in.readLong();
+            for (int i = in.readInt(); i > 0; i--) {
+                String name = in.readUTF();
+                byte[] section = new byte[in.readInt()];
+                in.readFully(section);
+                sections.put(name, section);
+            }
+        }
+        for (DeliveryObserver observer : this.observers) {
+            if (!sections.containsKey(observer.getClass().getName())) {
+                log.warn("the snapshot has no state of {}, loading from the repository", observer.getClass().getName());
+                return -1;
+            }
+        }
+        for (DeliveryObserver observer : this.observers) {
+            ((SnapshotSupport) observer).readSnapshot(
+                    new DataInputStream(new ByteArrayInputStream(sections.get(observer.getClass().getName()))));
+        }
+        this.lastDeliveryId.set(snapshotDeliveryId);
+        return snapshotGeneration;
+    }
+
+    /**
+     * apply the records of the log to the observers, and continue appending after the last one
+     * @param replayedIds gets the IDs of the replayed deliveries
+     * @return number of replayed deliveries
+     */
+    private long replay(long logGeneration, Set<Long> replayedIds) throws IOException {
+        List<long[]> records = new ArrayList<>();
+        List<Double> distances = new ArrayList<>();
+        long end = 0;
+        Path path = logPath(logGeneration);
+        if (Files.exists(path)) {
+            try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+                MappedByteBuffer buffer = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+                while (buffer.remaining() >= RECORD_BYTES && (buffer.get(buffer.position()) == RECORD_MARKER
+                        || buffer.get(buffer.position()) == NEXT_STOP_MARKER)) {
+                    byte marker = buffer.get();
+                    replayedIds.add(buffer.getLong());
+                    long driverId = buffer.getLong();
+                    long deliveryTime = buffer.getLong();
+                    int durationMinutes = buffer.getInt();
+                    distances.add(buffer.getDouble());
+                    records.add(new long[]{driverId, deliveryTime, durationMinutes, marker == NEXT_STOP_MARKER ? 1 : 0,
+                            buffer.getLong(), buffer.getInt()});
+                }
+                end = buffer.position();
+            }
+        }
+
+        //the observers are given the drivers themselves, some views keep them
+        Set<Long> driverIds = new HashSet<>();
+        for (long[] record : records) {
+            driverIds.add(record[0]);
+        }
+        Map<Long, Driver> drivers = new HashMap<>();
+        for (Driver driver : this.driverRepository.findAllById(driverIds)) {
+            drivers.put(driver.getId(), driver);
+        }
+        for (int i = 0; i < records.size(); i++) {
+            long[] record = records.get(i);
+            if (!drivers.containsKey(record[0])) { //the driver was removed since
+                continue;
+            }
+            Delivery delivery = new Delivery();
+            delivery.setDriver(drivers.get(record[0]));
+            delivery.setDeliveryTime(new Date(record[1]));
+            delivery.setDurationMinutes((int) record[2]);
+            delivery.setDistance(distances.get(i));
+            //the bundle only carries the window the delivery books its driver for
+            delivery.setBundle(record[4] == record[1] && record[5] == record[2] ? null
+                    : new DeliveryBundle(delivery.getDriver(), null, new Date(record[4]), (int) record[5], 0),
+                    (int) record[3]);
+            for (DeliveryObserver observer : this.observers) {
+                observer.onDeliveryCreated(delivery);
+            }
+        }
+        openLog(logGeneration, end);
+        this.generation = logGeneration;
+        for (Long deliveryId : replayedIds) {
+            this.lastDeliveryId.accumulateAndGet(deliveryId, Math::max);
+        }
+        return records.size();
+    }
+
+    /**
+     * apply the deliveries after the snapshot the log doesn't have - committed by another node, while this node
+     * was down, or just before a crash cut off their records
+     * @param snapshotDeliveryId the snapshot's last delivery ID
+     * @param replayedIds IDs of the deliveries replayed from the log
+     * @return number of applied deliveries
+     */
+    private long catchUp(long snapshotDeliveryId, Set<Long> replayedIds) {
+        long caughtUp = 0;
+        for (Delivery delivery : this.deliveryRepository.findByIdGreaterThan(snapshotDeliveryId)) {
+            this.lastDeliveryId.accumulateAndGet(delivery.getId(), Math::max);
+            if (replayedIds.contains(delivery.getId())) {
+                continue;
+            }
+            for (DeliveryObserver observer : this.observers) {
+                observer.onDeliveryCreated(delivery);
+            }
+            caughtUp++;
+        }
+        return caughtUp;
+    }
+
+    private synchronized void append(Delivery delivery) {
+        if (this.channel == null) { //not started yet, the first snapshot will hold the delivery
+            return;
+        }
+        try {
+            if (this.position + RECORD_BYTES > this.mappedStart + this.mapped.capacity()) {
+                map(this.position);
+            }
+            int offset = (int) (this.position - this.mappedStart);
+            this.mapped.putLong(offset + 1, delivery.getId());
+            this.mapped.putLong(offset + 9, delivery.getDriver().getId());
+            this.mapped.putLong(offset + 17, delivery.getDeliveryTime().getTime());
+            this.mapped.putInt(offset + 25, delivery.getDurationMinutes());
+            this.mapped.putDouble(offset + 29, delivery.getDistance());
+            this.mapped.putLong(offset + 37, delivery.getBookedTime().getTime());
+            this.mapped.putInt(offset + 45, delivery.getBookedMinutes());
+            this.mapped.put(offset, delivery.isFirstStop() ? RECORD_MARKER : NEXT_STOP_MARKER);
+            this.position += RECORD_BYTES;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * continue appending to the log of the given generation at the given offset, anything after it is cut off -
+     * a record cut in the middle, or the records of an older log of the same generation
+     */
+    private synchronized void openLog(long logGeneration, long offset) throws IOException {
+        close();
+        this.channel = FileChannel.open(logPath(logGeneration), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        this.channel.truncate(offset);
+        this.position = offset;
+        map(offset);
+    }
+
+    private void map(long offset) throws IOException {
+        if (this.mapped != null) {
+            this.mapped.force();
+        }
+        this.mapped = this.channel.map(FileChannel.MapMode.READ_WRITE, offset, this.segmentBytes);
+        this.mappedStart = offset;
+    }
+
+    private Path snapshotPath() {
+        return Paths.get(this.directory, "snapshot.bin");
+    }
+
+    private Path logPath(long logGeneration) {
+        return Paths.get(this.directory, "deliveries-" + logGeneration + ".log");
+    }
+}
@@ -0,0 +1,22 @@
+package com.walt.model;
+
+/**
+ * How createOrderAndAssignDriver picks a driver out of the available drivers
+ */
+public enum AssignmentStrategy {
+
+    /**
+     * the driver with the lowest number of deliveries
+     */
+    LEAST_BUSY,
+
+    /**
+     * the driver closest to the restaurant
+     */
+    NEAREST,
+
+    /**
+     * the driver with the best score of distance to the restaurant and number of deliveries
+     */
+    WEIGHTED
+}
@@ -5,9 +5,31 @@ import javax.persistence.Entity;
 @Entity
 public class City extends NamedEntity{
 
+    /**
+     * coordinates of the city center, used when a customer or a restaurant has no coordinates of its own
+     */
+    Double latitude;
+    Double longitude;
+
     public City(){}
 
     public City(String name){
         super(name);
     }
+
+    public Double getLatitude() {
+        return latitude;
+    }
+
+    public void setLatitude(Double latitude) {
+        this.latitude = latitude;
+    }
+
+    public Double getLongitude() {
+        return longitude;
+    }
+
+    public void setLongitude(Double longitude) {
+        this.longitude = longitude;
+    }
 }
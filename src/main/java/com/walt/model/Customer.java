@@ -9,6 +9,8 @@ public class Customer extends  NamedEntity{
     @ManyToOne
     City city;
     String address;
+    Double latitude;
+    Double longitude;
 
     public Customer(){}
 
@@ -33,4 +35,20 @@ public class Customer extends  NamedEntity{
     public void setAddress(String address) {
         this.address = address;
     }
+
+    public Double getLatitude() {
+        return latitude;
+    }
+
+    public void setLatitude(Double latitude) {
+        this.latitude = latitude;
+    }
+
+    public Double getLongitude() {
+        return longitude;
+    }
+
+    public void setLongitude(Double longitude) {
+        this.longitude = longitude;
+    }
 }
@@ -3,26 +3,82 @@ package com.walt.model;
 import javax.persistence.*;
 import java.util.Date;
 import java.util.Random;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * indexes serve the availability lookups (driver, time) and the per restaurant lookups
+ */
 @Entity
+@Table(indexes = {
+        @Index(name = "idx_delivery_driver_time", columnList = "driver_id, delivery_time"),
+        @Index(name = "idx_delivery_restaurant", columnList = "restaurant_id"),
+        @Index(name = "idx_delivery_bundle", columnList = "bundle_id")
+})
 public class Delivery {
 
+    /**
+     * each drive takes a full hour unless given otherwise
+     */
+    public static final int DEFAULT_DURATION_MINUTES = 60;
+
+    /**
+     * ids are taken from a pre-allocated block of the sequence, one sequence round trip per 50 deliveries
+     */
     @Id
-    @GeneratedValue(strategy= GenerationType.AUTO)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "delivery_seq")
+    @SequenceGenerator(name = "delivery_seq", sequenceName = "delivery_seq", allocationSize = 50)
     private Long id;
 
-    @ManyToOne
+    /**
+     * associations are loaded only when a use case asks for them, through an entity graph of DeliveryRepository -
+     * loading the deliveries alone is a single select
+     */
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "driver_id")
     Driver driver;
 
-    @ManyToOne
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "restaurant_id")
     Restaurant restaurant;
 
-    @ManyToOne
+    @ManyToOne(fetch = FetchType.LAZY)
     Customer customer;
 
+    /**
+     * city of the customer (and of the restaurant), copied when the delivery is created. deliveries saved before the
+     * column existed are not backfilled and have none - nothing reports by this column, reports go by the driver's city
+     */
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "city_id")
+    City city;
+
+    @Column(name = "delivery_time")
     Date deliveryTime;
+
+    /**
+     * the order's own time, the driver is booked by getBookedTime and getBookedMinutes
+     */
+    int durationMinutes = DEFAULT_DURATION_MINUTES;
+
+    /**
+     * distance from the previous stop, the restaurant for the first stop
+     */
     double distance;
 
+    /**
+     * the bundle the delivery is carried in, null for a delivery carried alone
+     */
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "bundle_id")
+    DeliveryBundle bundle;
+
+    /**
+     * place of the delivery on its route, 0 for the first stop and for a delivery carried alone.
+     * only the first stop of a route books the driver
+     */
+    @Column(name = "stop_index")
+    int stop;
+
     public Delivery() {
     }
 
@@ -30,9 +86,15 @@ public class Delivery {
         this.driver = driver;
         this.restaurant = restaurant;
         this.customer = customer;
+        this.city = customer != null ? customer.getCity() : null;
         this.deliveryTime = deliveryTime; //TIME STAMP
     }
 
+    public Delivery(Driver driver, Restaurant restaurant, Customer customer, Date deliveryTime, int durationMinutes) {
+        this(driver, restaurant, customer, deliveryTime);
+        this.durationMinutes = durationMinutes;
+    }
+
     public Long getId() {
         return id;
     }
@@ -59,6 +121,11 @@ public class Delivery {
 
     public void setCustomer(Customer customer) {
         this.customer = customer;
+        this.city = customer != null ? customer.getCity() : null;
+    }
+
+    public City getCity() {
+        return city;
     }
 
     public Date getDeliveryTime() {
@@ -69,6 +136,35 @@ public class Delivery {
         this.deliveryTime = deliveryTime;
     }
 
+    public int getDurationMinutes() {
+        return durationMinutes;
+    }
+
+    public void setDurationMinutes(int durationMinutes) {
+        this.durationMinutes = durationMinutes;
+    }
+
+    /**
+     * @return start of the window the delivery books its driver for - the pickup of the route for a bundled delivery
+     */
+    public Date getBookedTime() {
+        return bundle != null ? bundle.getDeliveryTime() : deliveryTime;
+    }
+
+    /**
+     * @return length of the window the delivery books its driver for - the whole route for a bundled delivery
+     */
+    public int getBookedMinutes() {
+        return bundle != null ? bundle.getDurationMinutes() : durationMinutes;
+    }
+
+    /**
+     * @return the time the driver is free again
+     */
+    public Date getEndTime() {
+        return new Date(getBookedTime().getTime() + TimeUnit.MINUTES.toMillis(getBookedMinutes()));
+    }
+
     public double getDistance() {
         return distance;
     }
@@ -76,4 +172,28 @@ public class Delivery {
     public void setDistance(double distance) {
         this.distance = distance;
     }
+
+    public DeliveryBundle getBundle() {
+        return bundle;
+    }
+
+    public int getStop() {
+        return stop;
+    }
+
+    /**
+     * @param bundle the bundle the delivery is carried in
+     * @param stop place of the delivery on the bundle's route
+     */
+    public void setBundle(DeliveryBundle bundle, int stop) {
+        this.bundle = bundle;
+        this.stop = stop;
+    }
+
+    /**
+     * @return true if the delivery starts a route - it is the delivery the driver is booked for
+     */
+    public boolean isFirstStop() {
+        return stop == 0;
+    }
 }
@@ -0,0 +1,83 @@
+package com.walt.model;
+
+import javax.persistence.*;
+import java.util.Date;
+
+/**
+ * Orders picked up together from the same restaurant and carried by one driver along a single route.
+ * each order of the bundle is a Delivery, numbered by its stop on the route.
+ */
+@Entity
+@Table(name = "delivery_bundle")
+public class DeliveryBundle {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "bundle_seq")
+    @SequenceGenerator(name = "bundle_seq", sequenceName = "bundle_seq", allocationSize = 50)
+    private Long id;
+
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "driver_id")
+    Driver driver;
+
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "restaurant_id")
+    Restaurant restaurant;
+
+    /**
+     * pickup time, the driver is busy from it for durationMinutes
+     */
+    Date deliveryTime;
+
+    int durationMinutes;
+
+    int stops;
+
+    /**
+     * length of the whole route, the sum of the legs of its deliveries
+     */
+    double distance;
+
+    public DeliveryBundle() {
+    }
+
+    public DeliveryBundle(Driver driver, Restaurant restaurant, Date deliveryTime, int durationMinutes, int stops) {
+        this.driver = driver;
+        this.restaurant = restaurant;
+        this.deliveryTime = deliveryTime;
+        this.durationMinutes = durationMinutes;
+        this.stops = stops;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public Driver getDriver() {
+        return driver;
+    }
+
+    public Restaurant getRestaurant() {
+        return restaurant;
+    }
+
+    public Date getDeliveryTime() {
+        return deliveryTime;
+    }
+
+    public int getDurationMinutes() {
+        return durationMinutes;
+    }
+
+    public int getStops() {
+        return stops;
+    }
+
+    public double getDistance() {
+        return distance;
+    }
+
+    public void setDistance(double distance) {
+        this.distance = distance;
+    }
+}
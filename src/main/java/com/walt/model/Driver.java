@@ -1,13 +1,28 @@
 package com.walt.model;
 
 import javax.persistence.*;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
 
 @Entity
 public class Driver extends NamedEntity {
 
+    private static final long DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
+
     @ManyToOne
     City city;
 
+    /**
+     * daily shift, in minutes after midnight UTC. a shift that ends before it starts runs past midnight,
+     * a driver without a shift is always on duty
+     */
+    Integer shiftStartMinute;
+    Integer shiftEndMinute;
+
+    /**
+     * how many deliveries the driver carries at the same time, one if not set
+     */
+    Integer maxConcurrentOrders;
 
     public Driver(){}
 
@@ -23,4 +38,56 @@ public class Driver extends NamedEntity {
     public void setCity(City city) {
         this.city = city;
     }
+
+    public Integer getShiftStartMinute() {
+        return shiftStartMinute;
+    }
+
+    public Integer getShiftEndMinute() {
+        return shiftEndMinute;
+    }
+
+    /**
+     * @param startMinute start of the daily shift, minutes after midnight UTC, or null for no shift
+     * @param endMinute end of the daily shift (exclusive), equal to startMinute for a full day
+     */
+    public void setShift(Integer startMinute, Integer endMinute) {
+        if ((startMinute == null) != (endMinute == null)) {
+            throw new IllegalArgumentException("a shift needs both a start and an end");
+        }
+        if (startMinute != null && (startMinute < 0 || startMinute >= 1440 || endMinute < 0 || endMinute >= 1440)) {
+            throw new IllegalArgumentException("shift minutes must be in [0, 1440)");
+        }
+        this.shiftStartMinute = startMinute;
+        this.shiftEndMinute = endMinute;
+    }
+
+    public int getMaxConcurrentOrders() {
+        return maxConcurrentOrders == null ? 1 : maxConcurrentOrders;
+    }
+
+    public void setMaxConcurrentOrders(int maxConcurrentOrders) {
+        if (maxConcurrentOrders <= 0) {
+            throw new IllegalArgumentException("max concurrent orders must be positive");
+        }
+        this.maxConcurrentOrders = maxConcurrentOrders;
+    }
+
+    /**
+     * @param start start of a delivery
+     * @param durationMinutes duration of the delivery
+     * @return true if the whole delivery falls in a single shift of the driver
+     */
+    public boolean isOnShift(Date start, int durationMinutes) {
+        if (shiftStartMinute == null) {
+            return true;
+        }
+        long shiftStart = TimeUnit.MINUTES.toMillis(shiftStartMinute);
+        long shiftLength = Math.floorMod(TimeUnit.MINUTES.toMillis(shiftEndMinute) - shiftStart, DAY_MILLIS);
+        if (shiftLength == 0) {
+            shiftLength = DAY_MILLIS;
+        }
+        long sinceShiftStart = Math.floorMod(start.getTime() - shiftStart, DAY_MILLIS);
+        return sinceShiftStart + TimeUnit.MINUTES.toMillis(durationMinutes) <= shiftLength;
+    }
 }
@@ -4,5 +4,10 @@ public interface DriverDistance {
     Driver getDriver();
     Long getTotalDistance();
 
+    /**
+     * @return number of routes the driver drove - a bundle of orders is a single route
+     */
+    Long getRoutes();
+
     public void setTotalDistance(Long distance); //TODO THE SAME
 }
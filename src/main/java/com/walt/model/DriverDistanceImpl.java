@@ -6,10 +6,16 @@ import com.walt.model.DriverDistance;
 public class DriverDistanceImpl implements DriverDistance {
     private Driver driver;
     private Long totalDistance;
+    private Long routes;
 
     public DriverDistanceImpl(Driver driver, Long totalDistance) {
+        this(driver, totalDistance, 0L);
+    }
+
+    public DriverDistanceImpl(Driver driver, Long totalDistance, Long routes) {
         this.driver = driver;
         this.totalDistance = totalDistance;
+        this.routes = routes;
     }
 
     public Driver getDriver() {
@@ -20,6 +26,10 @@ public class DriverDistanceImpl implements DriverDistance {
         return this.totalDistance;
     }
 
+    public Long getRoutes() {
+        return this.routes;
+    }
+
     public void setTotalDistance(Long distance) {
         this.totalDistance = distance;
     }
@@ -0,0 +1,41 @@
+package com.walt.model;
+
+import javax.persistence.*;
+
+/**
+ * Last known position of a driver.
+ * kept in its own table, out of the second-level cache - positions change all the time, and every write to the
+ * table of the named entities would drop the cached lookups of cities, customers, drivers and restaurants alike.
+ */
+@Entity
+@Table(name = "driver_location")
+public class DriverLocation {
+
+    @Id
+    private Long driverId;
+
+    private double latitude;
+
+    private double longitude;
+
+    public DriverLocation() {
+    }
+
+    public DriverLocation(Long driverId, double latitude, double longitude) {
+        this.driverId = driverId;
+        this.latitude = latitude;
+        this.longitude = longitude;
+    }
+
+    public Long getDriverId() {
+        return driverId;
+    }
+
+    public double getLatitude() {
+        return latitude;
+    }
+
+    public double getLongitude() {
+        return longitude;
+    }
+}
@@ -0,0 +1,45 @@
+package com.walt.model;
+
+/**
+ * Compact, immutable row of a driver rank report - the driver's ID and name instead of the Driver entity,
+ * and the total distance and number of routes as primitives
+ */
+public final class DriverRank {
+
+    private final long driverId;
+
+    private final String driverName;
+
+    private final long totalDistance;
+
+    private final long routes;
+
+    public DriverRank(long driverId, String driverName, long totalDistance, long routes) {
+        this.driverId = driverId;
+        this.driverName = driverName;
+        this.totalDistance = totalDistance;
+        this.routes = routes;
+    }
+
+    public static DriverRank of(DriverDistance driverDistance) {
+        Driver driver = driverDistance.getDriver();
+        return new DriverRank(driver.getId(), driver.getName(), driverDistance.getTotalDistance(),
+                driverDistance.getRoutes());
+    }
+
+    public long getDriverId() {
+        return driverId;
+    }
+
+    public String getDriverName() {
+        return driverName;
+    }
+
+    public long getTotalDistance() {
+        return totalDistance;
+    }
+
+    public long getRoutes() {
+        return routes;
+    }
+}
@@ -1,11 +1,22 @@
 package com.walt.model;
 
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+
+import javax.persistence.Cacheable;
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
 
+/**
+ * root of cities, customers, drivers and restaurants. they change rarely, so the whole hierarchy is kept
+ * in the second-level cache - the drivers' positions, which change all the time, are kept apart in DriverLocation.
+ * the region name has no dots, Caffeine can only look up the size of an undotted region in application.conf
+ */
 @Entity
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = "named-entity")
 public class NamedEntity {
 
     @Id
@@ -0,0 +1,40 @@
+package com.walt.model;
+
+import java.util.Date;
+
+/**
+ * A single order of a batch - customer orders from restaurant for deliveryTime
+ */
+public class OrderRequest {
+    private final Customer customer;
+    private final Restaurant restaurant;
+    private final Date deliveryTime;
+    private final int durationMinutes;
+
+    public OrderRequest(Customer customer, Restaurant restaurant, Date deliveryTime) {
+        this(customer, restaurant, deliveryTime, Delivery.DEFAULT_DURATION_MINUTES);
+    }
+
+    public OrderRequest(Customer customer, Restaurant restaurant, Date deliveryTime, int durationMinutes) {
+        this.customer = customer;
+        this.restaurant = restaurant;
+        this.deliveryTime = deliveryTime;
+        this.durationMinutes = durationMinutes;
+    }
+
+    public Customer getCustomer() {
+        return customer;
+    }
+
+    public Restaurant getRestaurant() {
+        return restaurant;
+    }
+
+    public Date getDeliveryTime() {
+        return deliveryTime;
+    }
+
+    public int getDurationMinutes() {
+        return durationMinutes;
+    }
+}
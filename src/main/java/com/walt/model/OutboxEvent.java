@@ -0,0 +1,114 @@
+package com.walt.model;
+
+import javax.persistence.*;
+import java.util.Date;
+
+/**
+ * A delivery assignment waiting to be relayed to the downstream consumers.
+ * written by WaltService in the transaction that saves the delivery, so the event commits or rolls back with it.
+ * the relay deletes the events it publishes, and a delivery saved other than through WaltService has no event.
+ * holds the IDs and values of the assignment only, consumers don't need to query the deliveries.
+ */
+@Entity
+@Table(name = "outbox_event")
+public class OutboxEvent {
+
+    /**
+     * ids are taken from a pre-allocated block of the sequence, the relay reads the events in id order
+     */
+    @Id
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "outbox_seq")
+    @SequenceGenerator(name = "outbox_seq", sequenceName = "outbox_seq", allocationSize = 50)
+    private Long id;
+
+    private Long deliveryId;
+
+    private Long driverId;
+
+    private Long restaurantId;
+
+    private Long customerId;
+
+    private Long cityId;
+
+    private Date deliveryTime;
+
+    private int durationMinutes;
+
+    private double distance;
+
+    /**
+     * the bundle of the delivery and its stop on the bundle's route, null and 0 for a delivery carried alone
+     */
+    private Long bundleId;
+
+    @Column(name = "stop_index")
+    private int stop;
+
+    private Date createdAt;
+
+    public OutboxEvent() {
+    }
+
+    public OutboxEvent(Delivery delivery) {
+        this.deliveryId = delivery.getId();
+        this.driverId = delivery.getDriver().getId();
+        this.restaurantId = delivery.getRestaurant().getId();
+        this.customerId = delivery.getCustomer().getId();
+        this.cityId = delivery.getCity().getId();
+        this.deliveryTime = delivery.getDeliveryTime();
+        this.durationMinutes = delivery.getDurationMinutes();
+        this.distance = delivery.getDistance();
+        this.bundleId = delivery.getBundle() != null ? delivery.getBundle().getId() : null;
+        this.stop = delivery.getStop();
+        this.createdAt = new Date();
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public Long getDeliveryId() {
+        return deliveryId;
+    }
+
+    public Long getDriverId() {
+        return driverId;
+    }
+
+    public Long getRestaurantId() {
+        return restaurantId;
+    }
+
+    public Long getCustomerId() {
+        return customerId;
+    }
+
+    public Long getCityId() {
+        return cityId;
+    }
+
+    public Date getDeliveryTime() {
+        return deliveryTime;
+    }
+
+    public int getDurationMinutes() {
+        return durationMinutes;
+    }
+
+    public double getDistance() {
+        return distance;
+    }
+
+    public Long getBundleId() {
+        return bundleId;
+    }
+
+    public int getStop() {
+        return stop;
+    }
+
+    public Date getCreatedAt() {
+        return createdAt;
+    }
+}
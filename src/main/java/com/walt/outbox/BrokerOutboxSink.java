@@ -0,0 +1,55 @@
+package com.walt.outbox;
+
+import com.walt.model.OutboxEvent;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Stand-in for a message broker - a bounded in-memory topic that consumers poll.
+ * when the topic stays full the batch fails and the relay retries it later.
+ */
+@Component
+@ConditionalOnProperty(name = "walt.outbox.broker.enabled", havingValue = "true")
+public class BrokerOutboxSink implements OutboxSink {
+
+    @Value("${walt.outbox.broker.capacity:10000}")
+    private int capacity;
+
+    @Value("${walt.outbox.broker.offer-timeout-ms:1000}")
+    private long offerTimeoutMs;
+
+    private BlockingQueue<OutboxEvent> topic;
+
+    @PostConstruct
+    public void start() {
+        this.topic = new ArrayBlockingQueue<>(this.capacity);
+    }
+
+    @Override
+    public void publish(List<OutboxEvent> events) throws InterruptedException, TimeoutException {
+        for (OutboxEvent event : events) {
+            if (!this.topic.offer(event, this.offerTimeoutMs, TimeUnit.MILLISECONDS)) {
+                throw new TimeoutException("the broker topic is full");
+            }
+        }
+    }
+
+    /**
+     * @param maxEvents max number of events to take
+     * @return the oldest events of the topic, removed from it
+     */
+    public List<OutboxEvent> poll(int maxEvents) {
+        List<OutboxEvent> events = new ArrayList<>();
+        this.topic.drainTo(events, maxEvents);
+        return events;
+    }
+}
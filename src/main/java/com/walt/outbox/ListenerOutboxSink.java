@@ -0,0 +1,27 @@
+package com.walt.outbox;
+
+import com.walt.model.OutboxEvent;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+/**
+ * Publishes every event to the in-process listeners, any @EventListener of OutboxEvent receives it
+ */
+@Component
+@ConditionalOnProperty(name = "walt.outbox.listener.enabled", havingValue = "true", matchIfMissing = true)
+public class ListenerOutboxSink implements OutboxSink {
+
+    @Autowired
+    private ApplicationEventPublisher applicationEventPublisher;
+
+    @Override
+    public void publish(List<OutboxEvent> events) {
+        for (OutboxEvent event : events) {
+            this.applicationEventPublisher.publishEvent(event);
+        }
+    }
+}
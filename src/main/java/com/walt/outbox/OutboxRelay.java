@@ -0,0 +1,107 @@
+package com.walt.outbox;
+
+import com.walt.dao.OutboxEventRepository;
+import com.walt.model.OutboxEvent;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Drains the outbox table to the OutboxSink beans.
+ * every walt.outbox.flush-interval-ms the oldest walt.outbox.batch-size events are read, published to every
+ * sink and removed in one transaction, batch after batch until the outbox is empty.
+ * the batch is locked when it is read, so every node of a cluster can run the relay and each event is still
+ * published by one node only.
+ * if a sink fails the transaction rolls back and the batch is published again on the next flush.
+ */
+@Component
+public class OutboxRelay {
+
+    private static final Logger log = LoggerFactory.getLogger(OutboxRelay.class);
+
+    @Autowired
+    private OutboxEventRepository outboxEventRepository;
+
+    @Autowired(required = false)
+    private List<OutboxSink> sinks = Collections.emptyList();
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${walt.outbox.batch-size:500}")
+    private int batchSize;
+
+    private TransactionTemplate transactionTemplate;
+
+    @PostConstruct
+    public void start() {
+        this.transactionTemplate = new TransactionTemplate(this.transactionManager);
+        if (this.sinks.isEmpty()) {
+            log.warn("no outbox sink is enabled, delivery events are kept in the outbox");
+        }
+    }
+
+    /**
+     * relay every pending event
+     * @return number of events relayed
+     */
+    @Scheduled(initialDelayString = "${walt.outbox.flush-interval-ms:1000}",
+            fixedDelayString = "${walt.outbox.flush-interval-ms:1000}")
+    public synchronized int flush() {
+        if (this.sinks.isEmpty()) {
+            return 0;
+        }
+        int relayed = 0;
+        int batch;
+        try {
+            do {
+                batch = this.transactionTemplate.execute(status -> relayBatch());
+                relayed += batch;
+            } while (batch == this.batchSize);
+        } catch (RuntimeException e) {
+            log.warn("outbox relay failed, the batch will be retried", e);
+        }
+        return relayed;
+    }
+
+    private int relayBatch() {
+        List<OutboxEvent> events = this.outboxEventRepository.findAllByOrderByIdAsc(PageRequest.of(0, this.batchSize));
+        if (events.isEmpty()) {
+            return 0;
+        }
+        for (OutboxSink sink : this.sinks) {
+            try {
+                sink.publish(events);
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                if (e instanceof InterruptedException) {
+                    Thread.currentThread().interrupt();
+                }
+                throw new IllegalStateException(sink.getClass().getSimpleName() + " failed", e);
+            }
+        }
+        List<Long> ids = new ArrayList<>(events.size());
+        for (OutboxEvent event : events) {
+            ids.add(event.getId());
+        }
+        this.outboxEventRepository.deleteByIdIn(ids);
+        this.meterRegistry.counter("walt.outbox.relayed").increment(events.size());
+        return events.size();
+    }
+}
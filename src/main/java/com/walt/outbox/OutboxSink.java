@@ -0,0 +1,18 @@
+package com.walt.outbox;
+
+import com.walt.model.OutboxEvent;
+
+import java.util.List;
+
+/**
+ * A destination of the delivery events.
+ * the relay removes a batch only after every sink published it, so a sink that throws gets the same batch again -
+ * events are delivered at least once and a sink may see an event more than once.
+ */
+public interface OutboxSink {
+
+    /**
+     * @param events a batch of events, oldest first
+     */
+    void publish(List<OutboxEvent> events) throws Exception;
+}
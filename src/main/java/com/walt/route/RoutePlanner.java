@@ -0,0 +1,207 @@
+package com.walt.route;
+
+import com.walt.distance.DistanceCalculator;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Orders the stops of multi-stop routes - a route starts at the restaurant and visits every customer once,
+ * without going back. the route is built by nearest neighbour and then shortened by 2-opt moves until no move
+ * helps or the time budget of the request runs out, whichever comes first.
+ * the routes of a request are planned in parallel on a fork-join pool.
+ */
+@Component
+public class RoutePlanner {
+
+    /**
+     * a move has to shorten the route by more than this (Km) to be taken, so rounding never loops
+     */
+    private static final double MIN_GAIN = 1e-9;
+
+    /**
+     * time a whole request may spend on 2-opt, the nearest neighbour routes are always built
+     */
+    @Value("${walt.route.time-budget-ms:50}")
+    private long timeBudgetMs;
+
+    /**
+     * threads of the planning pool, 0 for one per processor
+     */
+    @Value("${walt.route.parallelism:0}")
+    private int parallelism;
+
+    private ForkJoinPool pool;
+
+    @PostConstruct
+    public void start() {
+        this.pool = new ForkJoinPool(this.parallelism > 0 ? this.parallelism
+                : Runtime.getRuntime().availableProcessors());
+    }
+
+    @PreDestroy
+    public void stop() {
+        this.pool.shutdownNow();
+    }
+
+    /**
+     * @param routes the stops of every route to plan
+     * @return for every route, the indexes of its customers (1 to n, 0 is the restaurant) in visiting order
+     */
+    public List<int[]> plan(List<RouteStops> routes) {
+        if (routes.isEmpty()) {
+            return Collections.emptyList();
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.timeBudgetMs);
+        int[][] planned = new int[routes.size()][];
+        if (routes.size() == 1) {
+            planned[0] = plan(routes.get(0), deadline);
+        } else {
+            this.pool.invoke(new PlanTask(routes, planned, 0, routes.size(), deadline));
+        }
+        return new ArrayList<>(Arrays.asList(planned));
+    }
+
+    /**
+     * plan a single route
+     * @param stops the restaurant and the customers of the route
+     * @param deadline System.nanoTime after which 2-opt stops
+     * @return the indexes of the customers (1 to n) in visiting order
+     */
+    public static int[] plan(RouteStops stops, long deadline) {
+        double[][] distances = distances(stops);
+        int[] path = nearestNeighbour(distances);
+        twoOpt(path, distances, deadline);
+        return Arrays.copyOfRange(path, 1, path.length);
+    }
+
+    /**
+     * @param stops the restaurant and the customers of a route
+     * @param order the customers in visiting order, as returned by plan
+     * @return length of the route in Km
+     */
+    public static double length(RouteStops stops, int[] order) {
+        double length = 0;
+        int previous = 0;
+        for (int stop : order) {
+            length += distance(stops, previous, stop);
+            previous = stop;
+        }
+        return length;
+    }
+
+    private static double[][] distances(RouteStops stops) {
+        int n = stops.size();
+        double[][] distances = new double[n][n];
+        for (int i = 0; i < n; i++) {
+            for (int j = i + 1; j < n; j++) {
+                distances[i][j] = distance(stops, i, j);
+                distances[j][i] = distances[i][j];
+            }
+        }
+        return distances;
+    }
+
+    private static double distance(RouteStops stops, int from, int to) {
+        return DistanceCalculator.haversine(stops.getLatitude(from), stops.getLongitude(from),
+                stops.getLatitude(to), stops.getLongitude(to));
+    }
+
+    /**
+     * @return path from the restaurant (0) that always goes on to the nearest customer not visited yet
+     */
+    private static int[] nearestNeighbour(double[][] distances) {
+        int n = distances.length;
+        int[] path = new int[n];
+        boolean[] visited = new boolean[n];
+        visited[0] = true;
+        for (int i = 1; i < n; i++) {
+            int from = path[i - 1];
+            int nearest = -1;
+            for (int candidate = 1; candidate < n; candidate++) {
+                if (!visited[candidate] && (nearest < 0 || distances[from][candidate] < distances[from][nearest])) {
+                    nearest = candidate;
+                }
+            }
+            path[i] = nearest;
+            visited[nearest] = true;
+        }
+        return path;
+    }
+
+    /**
+     * reverse path[i..j] whenever it shortens the path. the path is open - the restaurant stays first and nothing
+     * follows the last customer
+     */
+    private static void twoOpt(int[] path, double[][] distances, long deadline) {
+        int last = path.length - 1;
+        boolean improved = true;
+        while (improved) {
+            improved = false;
+            for (int i = 1; i < last; i++) {
+                if (System.nanoTime() - deadline > 0) {
+                    return;
+                }
+                for (int j = i + 1; j <= last; j++) {
+                    double before = distances[path[i - 1]][path[i]];
+                    double after = distances[path[i - 1]][path[j]];
+                    if (j < last) {
+                        before += distances[path[j]][path[j + 1]];
+                        after += distances[path[i]][path[j + 1]];
+                    }
+                    if (after < before - MIN_GAIN) {
+                        reverse(path, i, j);
+                        improved = true;
+                    }
+                }
+            }
+        }
+    }
+
+    private static void reverse(int[] path, int from, int to) {
+        for (; from < to; from++, to--) {
+            int stop = path[from];
+            path[from] = path[to];
+            path[to] = stop;
+        }
+    }
+
+    /**
+     * plans routes[from..to), splitting the range between forked tasks down to a single route
+     */
+    private static final class PlanTask extends RecursiveAction {
+        private final List<RouteStops> routes;
+        private final int[][] planned;
+        private final int from;
+        private final int to;
+        private final long deadline;
+
+        private PlanTask(List<RouteStops> routes, int[][] planned, int from, int to, long deadline) {
+            this.routes = routes;
+            this.planned = planned;
+            this.from = from;
+            this.to = to;
+            this.deadline = deadline;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.to - this.from == 1) {
+                this.planned[this.from] = plan(this.routes.get(this.from), this.deadline);
+                return;
+            }
+            int middle = (this.from + this.to) >>> 1;
+            invokeAll(new PlanTask(this.routes, this.planned, this.from, middle, this.deadline),
+                    new PlanTask(this.routes, this.planned, middle, this.to, this.deadline));
+        }
+    }
+}
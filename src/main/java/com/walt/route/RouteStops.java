@@ -0,0 +1,34 @@
+package com.walt.route;
+
+/**
+ * Locations of the stops of a route - the restaurant at index 0 and the customers from index 1
+ */
+public final class RouteStops {
+
+    private final double[] latitudes;
+
+    private final double[] longitudes;
+
+    public RouteStops(double[] latitudes, double[] longitudes) {
+        if (latitudes.length != longitudes.length || latitudes.length == 0) {
+            throw new IllegalArgumentException("a route needs a restaurant and a location for every stop");
+        }
+        this.latitudes = latitudes;
+        this.longitudes = longitudes;
+    }
+
+    /**
+     * @return number of stops, the restaurant included
+     */
+    public int size() {
+        return latitudes.length;
+    }
+
+    public double getLatitude(int stop) {
+        return latitudes[stop];
+    }
+
+    public double getLongitude(int stop) {
+        return longitudes[stop];
+    }
+}
@@ -17,9 +17,7 @@ public class SortByDistance implements Comparator<DriverDistance> {
      */
     public int compare(DriverDistance a, DriverDistance b)
     {
-        Long l = b.getTotalDistance() - a.getTotalDistance();
-        return l.intValue();
-
+        return Long.compare(b.getTotalDistance(), a.getTotalDistance());
     }
 
 }
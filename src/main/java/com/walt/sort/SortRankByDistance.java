@@ -0,0 +1,26 @@
+package com.walt.sort;
+import com.walt.model.DriverRank;
+
+import java.util.Comparator;
+
+/**
+ * sort DriverRank by their total distance in descending order, ties by driver ID.
+ * compares the primitive fields only, so sorting allocates nothing
+ */
+public class SortRankByDistance implements Comparator<DriverRank> {
+
+    public static final SortRankByDistance INSTANCE = new SortRankByDistance();
+
+    /**
+     * comapare 2 DriverRank in descending order of distance
+     * @param a DriverRank
+     * @param b DriverRank
+     * @return number < 0 if a comes before b, number > 0 if b comes before a, 0 for the same driver and distance
+     */
+    public int compare(DriverRank a, DriverRank b)
+    {
+        int cmp = Long.compare(b.getTotalDistance(), a.getTotalDistance());
+        return cmp != 0 ? cmp : Long.compare(a.getDriverId(), b.getDriverId());
+    }
+
+}
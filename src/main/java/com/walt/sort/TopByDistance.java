@@ -0,0 +1,48 @@
+package com.walt.sort;
+import com.walt.model.DriverRank;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * select the k DriverRank with the longest total distance without sorting all of them.
+ * keeps a heap of the best k seen so far, O(n log k) instead of O(n log n) for the whole report
+ */
+public final class TopByDistance {
+
+    private TopByDistance() {
+    }
+
+    /**
+     * @param ranks rows to select from
+     * @param k number of rows to select
+     * @return up to k rows, sorted by total distance in descending order
+     */
+    public static List<DriverRank> select(Iterator<DriverRank> ranks, int k)
+    {
+        if (k < 0) {
+            throw new IllegalArgumentException("k must not be negative");
+        }
+        if (k == 0) {
+            return Collections.emptyList();
+        }
+        //head of the heap is the worst of the best k
+        PriorityQueue<DriverRank> best = new PriorityQueue<>(Math.min(k, 1024), SortRankByDistance.INSTANCE.reversed());
+        while (ranks.hasNext()) {
+            DriverRank rank = ranks.next();
+            if (best.size() < k) {
+                best.add(rank);
+            } else if (SortRankByDistance.INSTANCE.compare(rank, best.peek()) < 0) {
+                best.poll();
+                best.add(rank);
+            }
+        }
+        List<DriverRank> top = new ArrayList<>(best);
+        top.sort(SortRankByDistance.INSTANCE);
+        return top;
+    }
+
+}
@@ -0,0 +1,49 @@
+package com.walt.web;
+
+import com.walt.model.Delivery;
+
+import java.util.Date;
+
+/**
+ * A created delivery as returned by the API
+ */
+public class DeliveryView {
+
+    private final Long id;
+
+    private final Long driverId;
+
+    private final String driverName;
+
+    private final Date deliveryTime;
+
+    private final double distance;
+
+    public DeliveryView(Delivery delivery) {
+        this.id = delivery.getId();
+        this.driverId = delivery.getDriver().getId();
+        this.driverName = delivery.getDriver().getName();
+        this.deliveryTime = delivery.getDeliveryTime();
+        this.distance = delivery.getDistance();
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public Long getDriverId() {
+        return driverId;
+    }
+
+    public String getDriverName() {
+        return driverName;
+    }
+
+    public Date getDeliveryTime() {
+        return deliveryTime;
+    }
+
+    public double getDistance() {
+        return distance;
+    }
+}
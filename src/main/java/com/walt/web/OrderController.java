@@ -0,0 +1,76 @@
+package com.walt.web;
+
+import com.walt.cluster.ClusterRouter;
+import com.walt.dao.CustomerRepository;
+import com.walt.dao.DeliveryRepository;
+import com.walt.dao.RestaurantRepository;
+import com.walt.intake.OrderIntake;
+import com.walt.model.Customer;
+import com.walt.model.Restaurant;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Order creation.
+ * orders go through the intake queues and the response is written when the order is assigned, so the request
+ * thread is returned to the container while the order waits - many pending orders don't hold many threads.
+ * only the node that owns the order's city assigns it, see ClusterRouter.
+ */
+@RestController
+@RequestMapping("/orders")
+public class OrderController {
+
+    @Autowired
+    private OrderIntake orderIntake;
+
+    @Autowired
+    private ClusterRouter clusterRouter;
+
+    @Autowired
+    private CustomerRepository customerRepository;
+
+    @Autowired
+    private DeliveryRepository deliveryRepository;
+
+    @Autowired
+    private RestaurantRepository restaurantRepository;
+
+    /**
+     * orders of a city owned by another node are forwarded to that node
+     */
+    @PostMapping
+    public CompletableFuture<ResponseEntity<?>> createOrder(@RequestBody OrderForm form,
+            @RequestHeader(value = ClusterRouter.FORWARDED_HEADER, required = false) String forwardedBy) {
+        if (form.getCustomerId() == null || form.getRestaurantId() == null || form.getDeliveryTime() == null) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                    "customerId, restaurantId and deliveryTime are required");
+        }
+        Customer customer = this.customerRepository.findById(form.getCustomerId())
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "no such customer"));
+        Restaurant restaurant = this.restaurantRepository.findById(form.getRestaurantId())
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "no such restaurant"));
+        Long cityId = customer.getCity().getId();
+        if (forwardedBy == null && !this.clusterRouter.isLocal(cityId)) {
+            return this.clusterRouter.forward(cityId, "/orders", form);
+        }
+        return this.orderIntake.submit(customer, restaurant, form.getDeliveryTime())
+                .thenApply(delivery -> ResponseEntity.status(HttpStatus.CREATED).body(new DeliveryView(delivery)));
+    }
+
+    @GetMapping("/{id}")
+    public DeliveryView getOrder(@PathVariable Long id) {
+        return this.deliveryRepository.findWithDriverById(id).map(DeliveryView::new)
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "no such order"));
+    }
+}
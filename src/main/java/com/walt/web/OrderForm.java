@@ -0,0 +1,39 @@
+package com.walt.web;
+
+import java.util.Date;
+
+/**
+ * Body of an order request
+ */
+public class OrderForm {
+
+    private Long customerId;
+
+    private Long restaurantId;
+
+    private Date deliveryTime;
+
+    public Long getCustomerId() {
+        return customerId;
+    }
+
+    public void setCustomerId(Long customerId) {
+        this.customerId = customerId;
+    }
+
+    public Long getRestaurantId() {
+        return restaurantId;
+    }
+
+    public void setRestaurantId(Long restaurantId) {
+        this.restaurantId = restaurantId;
+    }
+
+    public Date getDeliveryTime() {
+        return deliveryTime;
+    }
+
+    public void setDeliveryTime(Date deliveryTime) {
+        this.deliveryTime = deliveryTime;
+    }
+}
@@ -0,0 +1,127 @@
+package com.walt.web;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.walt.WaltService;
+import com.walt.dao.CityRepository;
+import com.walt.model.City;
+import com.walt.model.DriverDistance;
+import com.walt.model.DriverRank;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Driver rank reports, a page at a time or exported whole as a stream of rows
+ */
+@RestController
+@RequestMapping("/reports/drivers")
+public class ReportController {
+
+    private static final MediaType NDJSON = MediaType.parseMediaType("application/x-ndjson");
+
+    private static final MediaType CSV = MediaType.parseMediaType("text/csv");
+
+    @Autowired
+    private WaltService waltService;
+
+    @Autowired
+    private CityRepository cityRepository;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @GetMapping
+    public List<DriverRank> getDriverRankReport(@RequestParam(defaultValue = "0") int offset,
+                                                    @RequestParam(defaultValue = "100") int limit) {
+        return toViews(this.waltService.getDriverRankReport(offset, limit));
+    }
+
+    @GetMapping("/cities/{cityId}")
+    public List<DriverRank> getDriverRankReportByCity(@PathVariable Long cityId,
+                                                          @RequestParam(defaultValue = "0") int offset,
+                                                          @RequestParam(defaultValue = "100") int limit) {
+        City city = this.cityRepository.findById(cityId)
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "no such city"));
+        return toViews(this.waltService.getDriverRankReportByCity(city, offset, limit));
+    }
+
+    /**
+     * the whole report, written row by row as NDJSON (default) or CSV
+     */
+    @GetMapping("/export")
+    public ResponseEntity<StreamingResponseBody> exportDriverRankReport(
+            @RequestParam(defaultValue = "ndjson") String format) {
+        return export(format, this.waltService::streamDriverRankReport);
+    }
+
+    @GetMapping("/cities/{cityId}/export")
+    public ResponseEntity<StreamingResponseBody> exportDriverRankReportByCity(@PathVariable Long cityId,
+            @RequestParam(defaultValue = "ndjson") String format) {
+        City city = this.cityRepository.findById(cityId)
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "no such city"));
+        return export(format, () -> this.waltService.streamDriverRankReportByCity(city));
+    }
+
+    /**
+     * the rows are taken from the report stream while the response is written, so only a chunk of rows and a buffer
+     * of the response are held in memory however many drivers there are
+     */
+    private ResponseEntity<StreamingResponseBody> export(String format, Supplier<Stream<DriverRank>> report) {
+        boolean csv = "csv".equalsIgnoreCase(format);
+        if (!csv && !"ndjson".equalsIgnoreCase(format)) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "format must be ndjson or csv");
+        }
+        StreamingResponseBody body = out -> {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            if (csv) {
+                writer.write("driverId,driverName,totalDistance,routes\n");
+            }
+            try (Stream<DriverRank> rows = report.get()) {
+                Iterator<DriverRank> iterator = rows.iterator();
+                while (iterator.hasNext()) {
+                    DriverRank row = iterator.next();
+                    if (csv) {
+                        writer.write(row.getDriverId() + "," + csvField(row.getDriverName()) + ","
+                                + row.getTotalDistance() + "," + row.getRoutes() + "\n");
+                    } else {
+                        writer.write(this.objectMapper.writeValueAsString(row));
+                        writer.write('\n');
+                    }
+                }
+            }
+            writer.flush();
+        };
+        return ResponseEntity.ok()
+                .contentType(csv ? CSV : NDJSON)
+                .body(body);
+    }
+
+    private static String csvField(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    private static List<DriverRank> toViews(List<DriverDistance> report) {
+        return report.stream().map(DriverRank::of).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,61 @@
+package com.walt.web;
+
+import com.walt.exceptions.CitiesDontMatchException;
+import com.walt.exceptions.IntakeQueueFullException;
+import com.walt.exceptions.IntakeStoppedException;
+import com.walt.exceptions.NoDriversAvailableException;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.RestControllerAdvice;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Maps the service's exceptions to HTTP responses
+ */
+@RestControllerAdvice
+public class WaltExceptionHandler {
+
+    /**
+     * the next free slot, if known, is given as nextAvailableTime
+     */
+    @ExceptionHandler(NoDriversAvailableException.class)
+    public ResponseEntity<Map<String, String>> noDriversAvailable(NoDriversAvailableException e) {
+        if (e.getNextAvailableTime() == null) {
+            return error(HttpStatus.CONFLICT, e);
+        }
+        Map<String, String> body = new LinkedHashMap<>();
+        body.put("error", e.getMessage());
+        body.put("nextAvailableTime", e.getNextAvailableTime().toInstant().toString());
+        return ResponseEntity.status(HttpStatus.CONFLICT).body(body);
+    }
+
+    @ExceptionHandler(CitiesDontMatchException.class)
+    public ResponseEntity<Map<String, String>> citiesDontMatch(CitiesDontMatchException e) {
+        return error(HttpStatus.UNPROCESSABLE_ENTITY, e);
+    }
+
+    /**
+     * the intake is full, the client should back off and retry
+     */
+    @ExceptionHandler(IntakeQueueFullException.class)
+    public ResponseEntity<Map<String, String>> intakeQueueFull(IntakeQueueFullException e) {
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).header("Retry-After", "1")
+                .body(Collections.singletonMap("error", e.getMessage()));
+    }
+
+    /**
+     * the node is shutting down, the order was not assigned
+     */
+    @ExceptionHandler(IntakeStoppedException.class)
+    public ResponseEntity<Map<String, String>> intakeStopped(IntakeStoppedException e) {
+        return error(HttpStatus.SERVICE_UNAVAILABLE, e);
+    }
+
+    private static ResponseEntity<Map<String, String>> error(HttpStatus status, Exception e) {
+        return ResponseEntity.status(status).body(Collections.singletonMap("error", e.getMessage()));
+    }
+}
@@ -1,26 +1,83 @@
 package com.walt;
 
+import com.walt.cluster.ClusterRouter;
 import com.walt.exceptions.CitiesDontMatchException;
+import com.walt.exceptions.CityNotOwnedException;
+import com.walt.exceptions.IntakeStoppedException;
 import com.walt.exceptions.NoDriversAvailableException;
+import com.walt.index.CityCapacityTable;
+import com.walt.index.DeliveryIndexLoader;
+import com.walt.index.DriverDistanceBuckets;
+import com.walt.index.DriverLeaderboard;
+import com.walt.index.DriverScheduleIndex;
+import com.walt.intake.OrderIntake;
+import com.walt.journal.DeliveryJournal;
+import com.walt.outbox.OutboxRelay;
 import com.walt.dao.*;
+import com.walt.distance.DistanceCalculator;
 import com.walt.model.*;
+import com.walt.sort.SortByDistance;
+import com.jayway.jsonpath.JsonPath;
 import org.assertj.core.util.Lists;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.PayloadApplicationEvent;
 import org.springframework.context.annotation.Bean;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.web.client.HttpStatusCodeException;
+import org.springframework.web.client.RestTemplate;
 
 import javax.annotation.Resource;
+import javax.persistence.EntityManagerFactory;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
-@SpringBootTest()
+//nodes started by a test share its database
+@SpringBootTest(properties = "spring.datasource.generate-unique-name=false")
+@AutoConfigureMockMvc
 @DirtiesContext(classMode = DirtiesContext.ClassMode.BEFORE_EACH_TEST_METHOD)
 public class WaltTest {
 
@@ -51,6 +108,42 @@ public class WaltTest {
     @Resource
     RestaurantRepository restaurantRepository;
 
+    @Resource
+    JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    OrderIntake orderIntake;
+
+    @Autowired
+    MockMvc mockMvc;
+
+    @Autowired
+    DeliveryIndexLoader deliveryIndexLoader;
+
+    @Autowired
+    DriverScheduleIndex driverScheduleIndex;
+
+    @Autowired
+    ClusterRouter clusterRouter;
+
+    @Autowired
+    DriverDistanceBuckets driverDistanceBuckets;
+
+    @Autowired
+    CityCapacityTable cityCapacityTable;
+
+    @Resource
+    EntityManagerFactory entityManagerFactory;
+
+    @Resource
+    OutboxEventRepository outboxEventRepository;
+
+    @Autowired
+    OutboxRelay outboxRelay;
+
+    @Autowired
+    ConfigurableApplicationContext applicationContext;
+
     @BeforeEach()
     public void prepareData() throws NoDriversAvailableException, CitiesDontMatchException {
 
@@ -258,6 +351,541 @@ public class WaltTest {
         assertEquals("Daniel", d1.getDriver().getName());
     }
 
+    /**
+     * Tests createOrdersAndAssignDrivers
+     * Test case - two orders in Tel-Aviv at the same time, each gets a different driver, the least busy ones
+     * (Daniel has 1 delivery, Mary has 2, Patricia has 3). too many orders at the same time can't be assigned.
+     * @throws NoDriversAvailableException
+     * @throws CitiesDontMatchException
+     */
+    @Test
+    public void batchOrdersAreBalanced() throws NoDriversAvailableException, CitiesDontMatchException {
+        Customer c1 = customerRepository.findByName("Bach"); //Tel-Aviv
+        Customer c2 = customerRepository.findByName("Rachmaninoff"); //Tel-Aviv
+        Restaurant r1 = restaurantRepository.findByName("vegan"); //Tel-Aviv
+        Date deliveryTime = new Date(2020, Calendar.DECEMBER, 20);
+
+        List<Delivery> deliveries = waltService.createOrdersAndAssignDrivers(Lists.newArrayList(
+                new OrderRequest(c1, r1, deliveryTime),
+                new OrderRequest(c2, r1, deliveryTime)));
+
+        assertEquals("Daniel", deliveries.get(0).getDriver().getName());
+        assertEquals("Mary", deliveries.get(1).getDriver().getName());
+        assertNotNull(deliveries.get(0).getId());
+
+        assertThrows(NoDriversAvailableException.class, () -> waltService.createOrdersAndAssignDrivers(
+                Lists.newArrayList(
+                        new OrderRequest(c1, r1, deliveryTime),
+                        new OrderRequest(c2, r1, deliveryTime))));
+    }
+
+
+    /**
+     * Tests order bundling of createOrdersAndAssignDrivers
+     * Test case - three orders from the vegan restaurant to neighbours in Tel-Aviv and one to a customer across town.
+     * Expected result - the neighbours are a single route of one driver, each delivery with its own time and the
+     * distance of its leg, counted as one route in the rank report. the driver is booked for the whole route, also
+     * after the views are reloaded. the far order is carried alone by another driver.
+     * @throws NoDriversAvailableException
+     * @throws CitiesDontMatchException
+     */
+    @Test
+    public void nearbyOrdersAreBundled() throws NoDriversAvailableException, CitiesDontMatchException {
+        City tlv = cityRepository.findByName("Tel-Aviv");
+        Restaurant r1 = restaurantRepository.findByName("vegan"); //Tel-Aviv
+        r1.setLatitude(32.0800);
+        r1.setLongitude(34.7800);
+        restaurantRepository.save(r1);
+        List<Customer> customers = new ArrayList<>();
+        double[][] locations = {{32.0850, 34.7810}, {32.0860, 34.7830}, {32.0870, 34.7820}, {32.1500, 34.8500}};
+        for (int i = 0; i < locations.length; i++) {
+            Customer customer = new Customer("neighbour" + i, tlv, "street " + i);
+            customer.setLatitude(locations[i][0]);
+            customer.setLongitude(locations[i][1]);
+            customers.add(customerRepository.save(customer));
+        }
+        Date deliveryTime = new Date(2020, Calendar.DECEMBER, 24);
+        Map<Long, Long> routesBefore = new HashMap<>();
+        for (DriverDistance driverDistance : waltService.getDriverRankReport()) {
+            routesBefore.put(driverDistance.getDriver().getId(), driverDistance.getRoutes());
+        }
+
+        List<Delivery> deliveries = waltService.createOrdersAndAssignDrivers(Lists.newArrayList(
+                new OrderRequest(customers.get(0), r1, deliveryTime),
+                new OrderRequest(customers.get(1), r1, deliveryTime),
+                new OrderRequest(customers.get(2), r1, new Date(deliveryTime.getTime() + TimeUnit.MINUTES.toMillis(5))),
+                new OrderRequest(customers.get(3), r1, deliveryTime)));
+
+        Driver driver = deliveries.get(0).getDriver();
+        assertNotNull(deliveries.get(0).getBundle());
+        for (int stop = 0; stop < 3; stop++) {
+            assertEquals(driver.getId(), deliveries.get(stop).getDriver().getId());
+            assertEquals(deliveries.get(0).getBundle().getId(), deliveries.get(stop).getBundle().getId());
+            assertEquals(stop, deliveries.get(stop).getStop());
+        }
+        assertEquals(DistanceCalculator.haversine(32.0850, 34.7810, 32.0860, 34.7830),
+                deliveries.get(1).getDistance(), 1e-9);
+        assertEquals(new Date(deliveryTime.getTime() + TimeUnit.MINUTES.toMillis(5)),
+                deliveries.get(2).getDeliveryTime());
+        assertEquals(Delivery.DEFAULT_DURATION_MINUTES, deliveries.get(2).getDurationMinutes());
+        assertEquals(deliveryTime, deliveries.get(0).getBundle().getDeliveryTime());
+        assertEquals(Delivery.DEFAULT_DURATION_MINUTES + 5, deliveries.get(0).getBundle().getDurationMinutes());
+        Date routeEnd = new Date(deliveryTime.getTime()
+                + TimeUnit.MINUTES.toMillis(Delivery.DEFAULT_DURATION_MINUTES + 4));
+        assertFalse(driverScheduleIndex.isAvailable(driver, routeEnd, 1));
+        deliveryIndexLoader.load();
+        assertFalse(driverScheduleIndex.isAvailable(driver, routeEnd, 1));
+        assertNull(deliveries.get(3).getBundle());
+        assertNotEquals(driver.getId(), deliveries.get(3).getDriver().getId());
+
+        for (DriverDistance driverDistance : waltService.getDriverRankReport()) {
+            if (driverDistance.getDriver().getId().equals(driver.getId())) {
+                assertEquals(routesBefore.get(driver.getId()) + 1, (long) driverDistance.getRoutes());
+            }
+        }
+    }
+
+    /**
+     * Tests the stop order of bundled orders
+     * Test case - 3 customers north of the restaurant on one street are ordered far, near, middle.
+     * the route must visit them near, middle, far, so it is just as long as the way to the farthest one.
+     */
+    @Test
+    public void bundledStopsAreOrderedByRoute() throws NoDriversAvailableException, CitiesDontMatchException {
+        City tlv = cityRepository.findByName("Tel-Aviv");
+        Restaurant r1 = restaurantRepository.findByName("vegan"); //Tel-Aviv
+        r1.setLatitude(32.0800);
+        r1.setLongitude(34.7800);
+        restaurantRepository.save(r1);
+        List<Customer> customers = new ArrayList<>();
+        double[] latitudes = {32.0880, 32.0840, 32.0860}; //far, near, middle
+        for (int i = 0; i < latitudes.length; i++) {
+            Customer customer = new Customer("street" + i, tlv, "street " + i);
+            customer.setLatitude(latitudes[i]);
+            customer.setLongitude(34.7800);
+            customers.add(customerRepository.save(customer));
+        }
+        Date deliveryTime = new Date(2020, Calendar.DECEMBER, 25);
+
+        List<Delivery> deliveries = waltService.createOrdersAndAssignDrivers(Lists.newArrayList(
+                new OrderRequest(customers.get(0), r1, deliveryTime),
+                new OrderRequest(customers.get(1), r1, deliveryTime),
+                new OrderRequest(customers.get(2), r1, deliveryTime)));
+
+        assertEquals(2, deliveries.get(0).getStop());
+        assertEquals(0, deliveries.get(1).getStop());
+        assertEquals(1, deliveries.get(2).getStop());
+        assertEquals(DistanceCalculator.haversine(32.0800, 34.7800, 32.0880, 34.7800),
+                deliveries.get(0).getBundle().getDistance(), 1e-9);
+    }
+
+    /**
+     * Tests createOrderAndAssignDriver under concurrent orders
+     * Test case - many threads order in Tel-Aviv at the same time, only the 3 drivers of Tel-Aviv can be
+     * assigned and no driver may be assigned twice.
+     * @throws InterruptedException
+     */
+    @Test
+    public void noDoubleBookingUnderConcurrentOrders() throws InterruptedException {
+        Customer c1 = customerRepository.findByName("Bach"); //Tel-Aviv
+        Restaurant r1 = restaurantRepository.findByName("vegan"); //Tel-Aviv
+        Date deliveryTime = new Date(2020, Calendar.DECEMBER, 21);
+        int threads = 32;
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Long> assignedDrivers = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger failures = new AtomicInteger();
+        for (int i = 0; i < threads; i++) {
+            executor.submit(() -> {
+                try {
+                    start.await();
+                    assignedDrivers.add(waltService.createOrderAndAssignDriver(c1, r1, deliveryTime).getDriver().getId());
+                } catch (NoDriversAvailableException e) {
+                    failures.incrementAndGet();
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+                return null;
+            });
+        }
+        start.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+
+        assertEquals(3, assignedDrivers.size());
+        assertEquals(3, new HashSet<>(assignedDrivers).size());
+        assertEquals(threads - 3, failures.get());
+    }
+
+    /**
+     * Tests DeliveryIndexLoader.reload with a delivery committing while the repository is read
+     * Test case - an order commits after the deliveries were read and before they are swapped in, the reloaded
+     * schedule must still have its driver busy at the order's time.
+     */
+    @Test
+    public void deliveryCommittedDuringReloadIsKept() {
+        Customer c1 = customerRepository.findByName("Bach"); //Tel-Aviv
+        Restaurant r1 = restaurantRepository.findByName("vegan"); //Tel-Aviv
+        Date deliveryTime = new Date(2020, Calendar.DECEMBER, 23);
+        List<Driver> drivers = Lists.newArrayList(driverRepository.findAll());
+        List<Delivery> created = new ArrayList<>();
+
+        deliveryIndexLoader.reload(() -> {
+            List<Delivery> read = Lists.newArrayList(deliveryRepository.findAll());
+            //another request commits its delivery while the reload is running
+            created.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return waltService.createOrderAndAssignDriver(c1, r1, deliveryTime);
+                } catch (NoDriversAvailableException | CitiesDontMatchException e) {
+                    throw new IllegalStateException(e);
+                }
+            }).join());
+            return read;
+        }, read -> driverScheduleIndex.rebuild(drivers, read), driverScheduleIndex::onDeliveryCreated);
+
+        assertFalse(driverScheduleIndex.isAvailable(created.get(0).getDriver(), deliveryTime,
+                Delivery.DEFAULT_DURATION_MINUTES));
+    }
+
+    /**
+     * Tests OrderIntake.submit
+     * Test case - 5 orders in Tel-Aviv at the same time are queued together, the first 3 get the 3 drivers of
+     * Tel-Aviv and the other 2 complete with NoDriversAvailableException.
+     * @throws InterruptedException
+     */
+    @Test
+    public void asyncIntakeAssignsQueuedOrders() throws InterruptedException {
+        Customer c1 = customerRepository.findByName("Bach"); //Tel-Aviv
+        Restaurant r1 = restaurantRepository.findByName("vegan"); //Tel-Aviv
+        Date deliveryTime = new Date(2020, Calendar.DECEMBER, 22);
+
+        List<CompletableFuture<Delivery>> orders = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            orders.add(orderIntake.submit(c1, r1, deliveryTime));
+        }
+        List<Long> assignedDrivers = new ArrayList<>();
+        int failures = 0;
+        for (CompletableFuture<Delivery> order : orders) {
+            try {
+                assignedDrivers.add(order.get(30, TimeUnit.SECONDS).getDriver().getId());
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof NoDriversAvailableException);
+                failures++;
+            } catch (TimeoutException e) {
+                fail("order was not assigned");
+            }
+        }
+
+        assertEquals(3, new HashSet<>(assignedDrivers).size());
+        assertEquals(2, failures);
+    }
+
+    /**
+     * Tests OrderIntake.submit after OrderIntake.stop
+     * Test case - an order submitted once the intake is stopped completes with IntakeStoppedException
+     * instead of waiting for a worker that is gone.
+     * @throws InterruptedException
+     */
+    @Test
+    public void stoppedIntakeRejectsOrders() throws InterruptedException {
+        Customer c1 = customerRepository.findByName("Bach"); //Tel-Aviv
+        Restaurant r1 = restaurantRepository.findByName("vegan"); //Tel-Aviv
+        Date deliveryTime = new Date(2020, Calendar.DECEMBER, 22);
+
+        orderIntake.stop();
+        CompletableFuture<Delivery> order = orderIntake.submit(c1, r1, deliveryTime);
+
+        try {
+            order.get(30, TimeUnit.SECONDS);
+            fail("order was assigned by a stopped intake");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IntakeStoppedException);
+        } catch (TimeoutException e) {
+            fail("order was neither assigned nor rejected");
+        }
+    }
+
+    /**
+     * Tests POST /orders
+     * Test case - an order of Bach from the vegan restaurant is answered with the assigned driver of Tel-Aviv,
+     * an order of Bach from a restaurant of another city is answered with 422.
+     * @throws Exception
+     */
+    @Test
+    public void orderIsCreatedThroughApi() throws Exception {
+        Customer c1 = customerRepository.findByName("Bach"); //Tel-Aviv
+        Restaurant r1 = restaurantRepository.findByName("vegan"); //Tel-Aviv
+        Restaurant r2 = restaurantRepository.findByName("meat"); //Jerusalem
+
+        MvcResult created = mockMvc.perform(post("/orders").contentType(MediaType.APPLICATION_JSON)
+                .content("{\"customerId\":" + c1.getId() + ",\"restaurantId\":" + r1.getId()
+                        + ",\"deliveryTime\":\"2020-12-23T10:00:00.000+00:00\"}"))
+                .andExpect(request().asyncStarted()).andReturn();
+        mockMvc.perform(asyncDispatch(created))
+                .andExpect(status().isCreated())
+                .andExpect(jsonPath("$.driverName").isNotEmpty());
+
+        MvcResult mismatched = mockMvc.perform(post("/orders").contentType(MediaType.APPLICATION_JSON)
+                .content("{\"customerId\":" + c1.getId() + ",\"restaurantId\":" + r2.getId()
+                        + ",\"deliveryTime\":\"2020-12-23T10:00:00.000+00:00\"}"))
+                .andExpect(request().asyncStarted()).andReturn();
+        mockMvc.perform(asyncDispatch(mismatched)).andExpect(status().isUnprocessableEntity());
+    }
+
+    /**
+     * Tests POST /orders of a city owned by a node that can't be reached
+     * Test case - the only node of the cluster listens nowhere, the order of Bach is answered with 503.
+     * @throws Exception
+     */
+    @Test
+    public void orderForUnreachableOwnerIsUnavailable() throws Exception {
+        Customer c1 = customerRepository.findByName("Bach"); //Tel-Aviv
+        Restaurant r1 = restaurantRepository.findByName("vegan"); //Tel-Aviv
+        clusterRouter.setNodes(Collections.singletonMap("down", "http://localhost:" + freePort()));
+        assertFalse(clusterRouter.isLocal(c1.getCity().getId()));
+
+        MvcResult forwarded = mockMvc.perform(post("/orders").contentType(MediaType.APPLICATION_JSON)
+                .content("{\"customerId\":" + c1.getId() + ",\"restaurantId\":" + r1.getId()
+                        + ",\"deliveryTime\":\"2020-12-23T10:00:00.000+00:00\"}"))
+                .andExpect(request().asyncStarted()).andReturn();
+        mockMvc.perform(asyncDispatch(forwarded)).andExpect(status().isServiceUnavailable());
+    }
+
+    /**
+     * Tests createOrdersAndAssignDrivers of a city owned by another node
+     * Test case - the only node of the cluster is another node, a batch with an order of Bach is rejected and
+     * nothing is saved.
+     */
+    @Test
+    public void batchForUnownedCityIsRejected() {
+        Customer c1 = customerRepository.findByName("Bach"); //Tel-Aviv
+        Restaurant r1 = restaurantRepository.findByName("vegan"); //Tel-Aviv
+        long deliveries = deliveryRepository.count();
+        clusterRouter.setNodes(Collections.singletonMap("other", "http://localhost:1"));
+
+        assertThrows(CityNotOwnedException.class, () -> waltService.createOrdersAndAssignDrivers(
+                Lists.newArrayList(new OrderRequest(c1, r1, new Date(2020, Calendar.DECEMBER, 20)))));
+        assertEquals(deliveries, deliveryRepository.count());
+    }
+
+
+    /**
+     * Tests routing of orders between 2 nodes over loopback
+     * Test case - orders of Tel-Aviv are sent to the node that doesn't own Tel-Aviv, they are assigned by the
+     * owner until its 3 drivers are busy. then the owner leaves, the other node takes over Tel-Aviv and must
+     * know the drivers are busy.
+     * @throws IOException
+     */
+    @Test
+    public void ordersAreRoutedToCityOwner() throws IOException {
+        Customer c1 = customerRepository.findByName("Bach"); //Tel-Aviv
+        Restaurant r1 = restaurantRepository.findByName("vegan"); //Tel-Aviv
+        Map<String, String> nodes = new LinkedHashMap<>();
+        nodes.put("a", "http://localhost:" + freePort());
+        nodes.put("b", "http://localhost:" + freePort());
+
+        try (ConfigurableApplicationContext a = startNode("a", nodes);
+             ConfigurableApplicationContext b = startNode("b", nodes)) {
+            boolean aOwnsTlv = a.getBean(ClusterRouter.class).isLocal(c1.getCity().getId());
+            ConfigurableApplicationContext other = aOwnsTlv ? b : a;
+            String otherId = aOwnsTlv ? "b" : "a";
+            assertFalse(other.getBean(ClusterRouter.class).isLocal(c1.getCity().getId()));
+
+            RestTemplate client = new RestTemplate();
+            String order = "{\"customerId\":" + c1.getId() + ",\"restaurantId\":" + r1.getId()
+                    + ",\"deliveryTime\":\"2020-12-25T10:00:00.000+00:00\"}";
+            List<Integer> statuses = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                statuses.add(postOrder(client, nodes.get(otherId), order));
+            }
+            assertEquals(Lists.newArrayList(201, 201, 201, 409), statuses);
+
+            other.getBean(ClusterRouter.class).setNodes(Collections.singletonMap(otherId, nodes.get(otherId)));
+            assertTrue(other.getBean(ClusterRouter.class).isLocal(c1.getCity().getId()));
+            assertEquals(409, postOrder(client, nodes.get(otherId), order));
+            //the leaderboard of the new owner counts the routes the old owner assigned too
+            ConfigurableApplicationContext owner = aOwnsTlv ? a : b;
+            assertEquals(routesByDriver(owner.getBean(DriverLeaderboard.class), c1.getCity()),
+                    routesByDriver(other.getBean(DriverLeaderboard.class), c1.getCity()));
+        }
+    }
+
+    /**
+     * Tests restoring the delivery indexes from the journal
+     * Test case - a node with a journal assigns 2 of the 3 drivers of Tel-Aviv and is stopped, another node assigns
+     * the third. the restarted node restores from the snapshot and the log of its 2 deliveries, reads the third
+     * from the repository, and knows all the drivers are busy.
+     * @throws IOException
+     * @throws NoDriversAvailableException
+     * @throws CitiesDontMatchException
+     */
+    @Test
+    public void indexesAreRestoredFromJournal()
+            throws IOException, NoDriversAvailableException, CitiesDontMatchException {
+        Customer c1 = customerRepository.findByName("Bach"); //Tel-Aviv
+        Restaurant r1 = restaurantRepository.findByName("vegan"); //Tel-Aviv
+        Map<String, String> nodes = Collections.singletonMap("a", "http://localhost:" + freePort());
+        String journal = "walt.journal.directory=" + Files.createTempDirectory("walt-journal");
+        RestTemplate client = new RestTemplate();
+        String order = "{\"customerId\":" + c1.getId() + ",\"restaurantId\":" + r1.getId()
+                + ",\"deliveryTime\":\"2020-12-26T10:00:00.000+00:00\"}";
+
+        try (ConfigurableApplicationContext a = startNode("a", nodes, "walt.journal.enabled=true", journal)) {
+            assertEquals(-1, a.getBean(DeliveryJournal.class).getReplayedOnRestore()); //loaded from the repository
+            for (int i = 0; i < 2; i++) {
+                assertEquals(201, postOrder(client, nodes.get("a"), order));
+            }
+        }
+        deliveryIndexLoader.load(); //this context stands for the other node
+        waltService.createOrderAndAssignDriver(c1, r1, Date.from(Instant.parse("2020-12-26T10:00:00Z")));
+        try (ConfigurableApplicationContext a = startNode("a", nodes, "walt.journal.enabled=true", journal)) {
+            assertEquals(2, a.getBean(DeliveryJournal.class).getReplayedOnRestore());
+            assertEquals(1, a.getBean(DeliveryJournal.class).getCaughtUpOnRestore());
+            assertEquals(409, postOrder(client, nodes.get("a"), order));
+        }
+    }
+
+    private static ConfigurableApplicationContext startNode(String nodeId, Map<String, String> nodes,
+                                                            String... properties) {
+        StringBuilder nodeList = new StringBuilder();
+        for (Map.Entry<String, String> node : nodes.entrySet()) {
+            nodeList.append(nodeList.length() == 0 ? "" : ",").append(node.getKey()).append('=').append(node.getValue());
+        }
+        List<String> args = Lists.newArrayList(
+                "--server.port=" + nodes.get(nodeId).substring(nodes.get(nodeId).lastIndexOf(':') + 1),
+                "--walt.cluster.node-id=" + nodeId,
+                "--walt.cluster.nodes=" + nodeList,
+                "--spring.datasource.url=jdbc:h2:mem:testdb", //the database of the test
+                "--spring.jpa.hibernate.ddl-auto=none",
+                //the JCache manager is shared by the JVM, a stopped node would close the caches of the test
+                "--spring.jpa.properties.hibernate.cache.use_second_level_cache=false",
+                "--spring.jpa.properties.hibernate.cache.use_query_cache=false");
+        for (String property : properties) {
+            args.add("--" + property);
+        }
+        //given as arguments, default properties would lose to application.properties
+        return new SpringApplicationBuilder(WaltApplication.class).run(args.toArray(new String[0]));
+    }
+
+    private static int postOrder(RestTemplate client, String baseUrl, String order) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_JSON);
+        try {
+            return client.postForEntity(baseUrl + "/orders", new HttpEntity<>(order, headers), String.class)
+                    .getStatusCodeValue();
+        } catch (HttpStatusCodeException e) {
+            return e.getRawStatusCode();
+        }
+    }
+
+    private static Map<Long, Long> routesByDriver(DriverLeaderboard leaderboard, City city) {
+        Map<Long, Long> routes = new HashMap<>();
+        for (DriverDistance row : leaderboard.getRankByCity(city, 0, Integer.MAX_VALUE)) {
+            routes.put(row.getDriver().getId(), row.getRoutes());
+        }
+        return routes;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+
+    /**
+     * Tests createOrderAndAssignDriver
+     * Test case - the restaurant and the customer have coordinates, the distance of the delivery is the
+     * distance between them (0.1 degree of latitude is about 11.12 Km). Rachmaninoff, the cafe and Tel-Aviv have
+     * no coordinates, their delivery gets walt.distance.default-km
+     * @throws NoDriversAvailableException
+     * @throws CitiesDontMatchException
+     */
+    @Test
+    public void distanceIsComputedFromCoordinates() throws NoDriversAvailableException, CitiesDontMatchException {
+        Customer c1 = customerRepository.findByName("Bach"); //Tel-Aviv
+        c1.setLatitude(32.0);
+        c1.setLongitude(34.8);
+        customerRepository.save(c1);
+        Restaurant r1 = restaurantRepository.findByName("vegan"); //Tel-Aviv
+        r1.setLatitude(32.1);
+        r1.setLongitude(34.8);
+        restaurantRepository.save(r1);
+
+        Delivery d1 = waltService.createOrderAndAssignDriver(c1, r1, new Date());
+
+        assertEquals(11.12, d1.getDistance(), 0.01);
+
+        Customer c2 = customerRepository.findByName("Rachmaninoff"); //Tel-Aviv
+        Restaurant r2 = restaurantRepository.findByName("cafe"); //Tel-Aviv
+        assertEquals(10, waltService.createOrderAndAssignDriver(c2, r2, new Date()).getDistance(), 0);
+    }
+
+
+    /**
+     * Tests createOrderAndAssignDriver with the NEAREST strategy
+     * Test case - Mary is next to the restaurant and Daniel is far from it, Mary should be chosen although
+     * Daniel is the least busy driver in Tel-Aviv
+     * @throws NoDriversAvailableException
+     * @throws CitiesDontMatchException
+     */
+    @Test
+    public void nearestDriverIsChosen() throws NoDriversAvailableException, CitiesDontMatchException {
+        Restaurant r1 = restaurantRepository.findByName("vegan"); //Tel-Aviv
+        r1.setLatitude(32.08);
+        r1.setLongitude(34.78);
+        restaurantRepository.save(r1);
+        waltService.updateDriverLocation(driverRepository.findByName("Mary"), 32.081, 34.781);
+        waltService.updateDriverLocation(driverRepository.findByName("Daniel"), 32.2, 34.9);
+        Customer c1 = customerRepository.findByName("Bach"); //Tel-Aviv
+
+        Delivery d1 = waltService.createOrderAndAssignDriver(c1, r1, new Date(), AssignmentStrategy.NEAREST);
+
+        assertEquals("Mary", d1.getDriver().getName());
+    }
+
+    /**
+     * Tests updateDriverLocation
+     * Test case - moving a driver doesn't write the table of the named entities, so the cached lookups of
+     * cities and drivers are still served without a statement
+     */
+    @Test
+    public void driverLocationKeepsCachedLookups() {
+        Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+        Driver mary = driverRepository.findByName("Mary");
+        cityRepository.findByName("Tel-Aviv");
+
+        waltService.updateDriverLocation(mary, 32.081, 34.781);
+        statistics.clear();
+        driverRepository.findByName("Mary");
+        cityRepository.findByName("Tel-Aviv");
+
+        assertEquals(0, statistics.getPrepareStatementCount());
+    }
+
+    /**
+     * checks that the hits and misses of the second-level and query caches are published on actuator -
+     * the drivers were cached when they were saved, so looking one up twice hits both caches
+     * @throws Exception
+     */
+    @Test
+    public void cacheHitsAreExposedOnActuator() throws Exception {
+        driverRepository.findByName("Mary");
+        driverRepository.findByName("Mary");
+
+        for (String metric : new String[]{"hibernate.second.level.cache.requests", "hibernate.cache.query.requests"}) {
+            assertTrue(metric, cacheRequests(metric, "hit") > 0);
+            assertTrue(metric, cacheRequests(metric, "miss") >= 0);
+        }
+    }
+
+    private double cacheRequests(String metric, String result) throws Exception {
+        MvcResult response = mockMvc.perform(get("/actuator/metrics/" + metric).param("tag", "result:" + result))
+                .andExpect(status().isOk()).andReturn();
+        return JsonPath.<Double>read(response.getResponse().getContentAsString(), "$.measurements[0].value");
+    }
+
     /**
      * Tests createOrderAndAssignDriver
      * Test case - a customer from Tel-Aviv trying to order from a restaurant in Tel-Aviv,
@@ -281,14 +909,14 @@ public class WaltTest {
      * hour. hence-there is no driver available.
      * Expected result - NoDriversAvailableException
      */
-//    @Test
-//    public void NoAvailableDriverInCity2() {
-//        assertThrows(NoDriversAvailableException.class, () -> {
-//            Customer c1 = customerRepository.findByName("Rachmaninoff"); //Tel-Aviv
-//            Restaurant r1 = restaurantRepository.findByName("cafe"); //Tel-Aviv
-//            waltService.createOrderAndAssignDriver(c1, r1, new Date(2020, 11, 8,0,30));
-//        });
-//    }
+    @Test
+    public void NoAvailableDriverInCity2() {
+        assertThrows(NoDriversAvailableException.class, () -> {
+            Customer c1 = customerRepository.findByName("Rachmaninoff"); //Tel-Aviv
+            Restaurant r1 = restaurantRepository.findByName("cafe"); //Tel-Aviv
+            waltService.createOrderAndAssignDriver(c1, r1, new Date(2020, 11, 8,0,30));
+        });
+    }
 
     /**
      * Test case - a customer from Raanana trying to order from a restaurant in Raanana, where there are
@@ -296,7 +924,7 @@ public class WaltTest {
      * Expected result - NoDriversAvailableException
      */
     @Test
-    public void NoAvailableDriverInCity2() {
+    public void NoAvailableDriverInCity3() {
 
         City raanana = new City("Raanana");
         cityRepository.save(raanana);
@@ -309,6 +937,105 @@ public class WaltTest {
     }
 
 
+    /**
+     * Test case - the only driver of Eilat works 08:00-16:00 UTC and carries two orders at a time.
+     * Expected result - two orders at 10:00 go to the driver, a third is rejected with 11:00 as the next free slot,
+     * and an order running past the end of the shift is rejected with the start of the next shift.
+     */
+    @Test
+    public void shiftsAndCapacityLimitAssignment() throws NoDriversAvailableException, CitiesDontMatchException {
+        City eilat = cityRepository.save(new City("Eilat"));
+        Restaurant fish = restaurantRepository.save(new Restaurant("fish", eilat, "Red sea fish"));
+        Customer eli = customerRepository.save(new Customer("Eli", eilat, "Eli from Eilat"));
+        Driver yael = new Driver("Yael", eilat);
+        yael.setShift(8 * 60, 16 * 60);
+        yael.setMaxConcurrentOrders(2);
+        driverRepository.save(yael);
+
+        Date ten = Date.from(Instant.parse("2030-01-01T10:00:00Z"));
+        assertEquals(yael.getId(), waltService.createOrderAndAssignDriver(eli, fish, ten).getDriver().getId());
+        assertEquals(yael.getId(), waltService.createOrderAndAssignDriver(eli, fish, ten).getDriver().getId());
+        NoDriversAvailableException full = assertThrows(NoDriversAvailableException.class,
+                () -> waltService.createOrderAndAssignDriver(eli, fish, ten));
+        assertEquals(Date.from(Instant.parse("2030-01-01T11:00:00Z")), full.getNextAvailableTime());
+
+        Date pastShiftEnd = Date.from(Instant.parse("2030-01-01T15:30:00Z"));
+        NoDriversAvailableException offShift = assertThrows(NoDriversAvailableException.class,
+                () -> waltService.createOrderAndAssignDriver(eli, fish, pastShiftEnd));
+        assertEquals(Date.from(Instant.parse("2030-01-02T08:00:00Z")), offShift.getNextAvailableTime());
+        waltService.createOrderAndAssignDriver(eli, fish, Date.from(Instant.parse("2030-01-01T15:00:00Z")));
+    }
+
+    /**
+     * Test case - the only driver of Eilat is full at 10:00 and moves to Tel-Aviv, a new driver joins Eilat.
+     * Expected result - the bookings leave Eilat with the driver, so an order at 10:00 goes to the new driver.
+     */
+    @Test
+    public void movedDriverTakesBookingsAlong() throws NoDriversAvailableException, CitiesDontMatchException {
+        City eilat = cityRepository.save(new City("Eilat"));
+        Restaurant fish = restaurantRepository.save(new Restaurant("fish", eilat, "Red sea fish"));
+        Customer eli = customerRepository.save(new Customer("Eli", eilat, "Eli from Eilat"));
+        Driver yael = new Driver("Yael", eilat);
+        yael.setMaxConcurrentOrders(2);
+        driverRepository.save(yael);
+
+        Date ten = Date.from(Instant.parse("2030-01-01T10:00:00Z"));
+        waltService.createOrderAndAssignDriver(eli, fish, ten);
+        waltService.createOrderAndAssignDriver(eli, fish, ten);
+        yael.setCity(cityRepository.findByName("Tel-Aviv"));
+        driverRepository.save(yael);
+        Driver tamar = new Driver("Tamar", eilat);
+        tamar.setMaxConcurrentOrders(1);
+        driverRepository.save(tamar);
+
+        assertEquals(tamar.getId(), waltService.createOrderAndAssignDriver(eli, fish, ten).getDriver().getId());
+    }
+
+    /**
+     * Tests the free drivers of a city found by the slot bitmaps
+     * Test case - Yael works 08:00-16:00 UTC, Tamar has no shift, each carries one order at a time.
+     * Expected result - both may take an order at 10:00, Tamar only at 20:00. once one of them has the order at 10:00
+     * the other is left for any window that overlaps it, and both are free again at 11:00.
+     */
+    @Test
+    public void freeDriversAreFoundBySlotBitmaps() throws NoDriversAvailableException, CitiesDontMatchException {
+        City eilat = cityRepository.save(new City("Eilat"));
+        Restaurant fish = restaurantRepository.save(new Restaurant("fish", eilat, "Red sea fish"));
+        Customer eli = customerRepository.save(new Customer("Eli", eilat, "Eli from Eilat"));
+        Driver yael = new Driver("Yael", eilat);
+        yael.setShift(8 * 60, 16 * 60);
+        driverRepository.save(yael);
+        Driver tamar = driverRepository.save(new Driver("Tamar", eilat));
+
+        Date ten = Date.from(Instant.parse("2030-01-01T10:00:00Z"));
+        Date halfPastTen = Date.from(Instant.parse("2030-01-01T10:30:00Z"));
+        Date eleven = Date.from(Instant.parse("2030-01-01T11:00:00Z"));
+        Set<Long> both = new HashSet<>(Lists.newArrayList(yael.getId(), tamar.getId()));
+        assertEquals(both, cityCapacityTable.freeDrivers(eilat, ten, 60));
+        assertEquals(Collections.singleton(tamar.getId()), cityCapacityTable.freeDrivers(eilat,
+                Date.from(Instant.parse("2030-01-01T20:00:00Z")), 60));
+
+        Driver assigned = waltService.createOrderAndAssignDriver(eli, fish, ten).getDriver();
+        Long other = assigned.getId().equals(yael.getId()) ? tamar.getId() : yael.getId();
+        assertEquals(Collections.singleton(other), cityCapacityTable.freeDrivers(eilat, ten, 60));
+        assertEquals(Collections.singleton(other), cityCapacityTable.freeDrivers(eilat, halfPastTen, 15));
+        assertEquals(both, cityCapacityTable.freeDrivers(eilat, eleven, 60));
+    }
+
+
+    /**
+     * checks that looking up the deliveries of a driver at a given time uses the (driver_id, delivery_time) index
+     */
+    @Test
+    public void deliveryLookupUsesDriverTimeIndex()
+    {
+        Long driverId = driverRepository.findByName("Mary").getId();
+        String plan = jdbcTemplate.queryForObject("EXPLAIN SELECT * FROM delivery WHERE driver_id = " + driverId
+                + " AND delivery_time = TIMESTAMP '3920-12-08 00:00:00'", String.class);
+        assertTrue(plan, plan.toUpperCase().contains("IDX_DELIVERY_DRIVER_TIME"));
+    }
+
+
     /**
      * checks if the output of DriverRankReportTest is correct according to the given database of the
      * deliveries
@@ -337,6 +1064,200 @@ public class WaltTest {
 
     }
 
+    /**
+     * checks getDriverRankReport and getDriverRankReportByCity (city - Tel-Aviv) for the morning of December 8,
+     * only the deliveries of that day are summed
+     */
+    @Test
+    public void DriverRankReportTimeRangeTest()
+    {
+        Date from = new Date(2020, Calendar.DECEMBER, 8);
+        Date to = new Date(2020, Calendar.DECEMBER, 8, 12, 0);
+
+        List<DriverDistance> dd = waltService.getDriverRankReport(from, to);
+        assertEquals(driverRepository.count(), dd.size());
+        assertEquals(driverRepository.findByName("Neta").getId(), dd.get(0).getDriver().getId());
+        assert(dd.get(0).getTotalDistance() == 19);
+        assertEquals(driverRepository.findByName("Patricia").getId(), dd.get(1).getDriver().getId());
+        assert(dd.get(1).getTotalDistance() == 16);
+        assertEquals(driverRepository.findByName("Daniel").getId(), dd.get(2).getDriver().getId());
+        assert(dd.get(2).getTotalDistance() == 7);
+        assertEquals(driverRepository.findByName("Mary").getId(), dd.get(3).getDriver().getId());
+        assert(dd.get(3).getTotalDistance() == 3);
+        assertEquals(driverRepository.findByName("Robert").getId(), dd.get(4).getDriver().getId());
+        assert(dd.get(4).getTotalDistance() == 1);
+        for (int i = 5; i < dd.size(); i++) //the rest must be 0, in no particular order
+        {
+            assert(dd.get(i).getTotalDistance() == 0);
+        }
+
+        List<DriverDistance> tlv = waltService.getDriverRankReportByCity(cityRepository.findByName("Tel-Aviv"), from, to);
+        assertEquals(3, tlv.size());
+        assertEquals(driverRepository.findByName("Patricia").getId(), tlv.get(0).getDriver().getId());
+        assert(tlv.get(0).getTotalDistance() == 16);
+        assertEquals(driverRepository.findByName("Daniel").getId(), tlv.get(1).getDriver().getId());
+        assertEquals(driverRepository.findByName("Mary").getId(), tlv.get(2).getDriver().getId());
+    }
+
+    /**
+     * checks that the time range reports follow the drivers - Patricia moves from Tel-Aviv to Haifa with her
+     * deliveries, and a new driver without deliveries is ranked with 0
+     */
+    @Test
+    public void DriverRankReportTimeRangeFollowsDrivers()
+    {
+        Date from = new Date(2020, Calendar.DECEMBER, 8);
+        Date to = new Date(2020, Calendar.DECEMBER, 8, 12, 0);
+        Driver patricia = driverRepository.findByName("Patricia");
+        patricia.setCity(cityRepository.findByName("Haifa"));
+        driverRepository.save(patricia);
+        Driver tom = driverRepository.save(new Driver("Tom", cityRepository.findByName("Tel-Aviv")));
+
+        List<DriverDistance> tlv = waltService.getDriverRankReportByCity(cityRepository.findByName("Tel-Aviv"), from, to);
+        assertEquals(3, tlv.size());
+        assertEquals(driverRepository.findByName("Daniel").getId(), tlv.get(0).getDriver().getId());
+        assertEquals(driverRepository.findByName("Mary").getId(), tlv.get(1).getDriver().getId());
+        assertEquals(tom.getId(), tlv.get(2).getDriver().getId());
+        assert(tlv.get(2).getTotalDistance() == 0);
+
+        List<DriverRank> haifa = waltService.getTopDriversByCity(cityRepository.findByName("Haifa"), from, to, 1);
+        assertEquals("Patricia", haifa.get(0).getDriverName());
+        assertEquals(16, haifa.get(0).getTotalDistance());
+        assertEquals(driverRepository.count(), waltService.getDriverRankReport(from, to).size());
+    }
+
+    /**
+     * checks getTopDrivers for the morning of December 8 - only the 2 leaders, in order,
+     * and that SortByDistance doesn't overflow on totals beyond an int
+     */
+    @Test
+    public void TopDriversTest()
+    {
+        Date from = new Date(2020, Calendar.DECEMBER, 8);
+        Date to = new Date(2020, Calendar.DECEMBER, 8, 12, 0);
+
+        List<DriverRank> top = waltService.getTopDrivers(from, to, 2);
+        assertEquals(2, top.size());
+        assertEquals("Neta", top.get(0).getDriverName());
+        assertEquals(19, top.get(0).getTotalDistance());
+        assertEquals("Patricia", top.get(1).getDriverName());
+        assertEquals(16, top.get(1).getTotalDistance());
+
+        DriverDistance shorter = new DriverDistanceImpl(null, 0L);
+        DriverDistance longer = new DriverDistanceImpl(null, 3_000_000_000L);
+        assertTrue(new SortByDistance().compare(shorter, longer) > 0);
+        assertTrue(new SortByDistance().compare(longer, shorter) < 0);
+    }
+
+    /**
+     * checks the report buckets of a day older than walt.report.hour-retention-days - a delivery of the morning of
+     * March 3 2020 (UTC) is kept in its day bucket only, so a range of that evening is widened to the whole day
+     */
+    @Test
+    public void oldHoursAreSummedByDay()
+    {
+        Driver robert = driverRepository.findByName("Robert");
+        Delivery old = new Delivery(robert, restaurantRepository.findByName("meat"),
+                customerRepository.findByName("Mozart"), Date.from(Instant.parse("2020-03-03T09:00:00Z")));
+        old.setDistance(5);
+        deliveryRepository.save(old);
+        deliveryIndexLoader.load();
+        driverDistanceBuckets.evictHours();
+
+        Date evening = Date.from(Instant.parse("2020-03-03T18:00:00Z"));
+        Date night = Date.from(Instant.parse("2020-03-03T21:00:00Z"));
+        assertEquals(5, driverDistanceBuckets.getTotalDistance(robert, evening, night));
+        assertEquals(0, driverDistanceBuckets.getTotalDistance(robert, Date.from(Instant.parse("2020-03-04T00:00:00Z")),
+                Date.from(Instant.parse("2020-03-05T00:00:00Z"))));
+    }
+
+    /**
+     * checks that the CSV export of the rank report has a row for every driver of getDriverRankReport,
+     * in the same order, also when the rows are copied a few at a time
+     * @throws Exception
+     */
+    @Test
+    public void DriverRankReportExportTest() throws Exception
+    {
+        List<DriverDistance> dd = waltService.getDriverRankReport();
+        ReflectionTestUtils.setField(applicationContext.getBean(DriverLeaderboard.class), "exportChunkSize", 3);
+
+        MvcResult export = mockMvc.perform(get("/reports/drivers/export").param("format", "csv"))
+                .andExpect(request().asyncStarted()).andReturn();
+        String[] lines = mockMvc.perform(asyncDispatch(export))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString().split("\n");
+
+        assertEquals("driverId,driverName,totalDistance,routes", lines[0]);
+        assertEquals(dd.size() + 1, lines.length);
+        for (int i = 0; i < dd.size(); i++) {
+            assertEquals(dd.get(i).getDriver().getId() + "," + dd.get(i).getDriver().getName() + ","
+                    + dd.get(i).getTotalDistance() + "," + dd.get(i).getRoutes(), lines[i + 1]);
+        }
+    }
+
+    /**
+     * Tests the outbox
+     * Test case - an order writes an event in its transaction, the relay publishes it to the in-process
+     * listeners and empties the outbox.
+     * @throws NoDriversAvailableException
+     * @throws CitiesDontMatchException
+     */
+    @Test
+    public void outboxEventIsRelayed() throws NoDriversAvailableException, CitiesDontMatchException {
+        Customer c1 = customerRepository.findByName("Bach"); //Tel-Aviv
+        Restaurant r1 = restaurantRepository.findByName("vegan"); //Tel-Aviv
+        List<OutboxEvent> received = Collections.synchronizedList(new ArrayList<>());
+        applicationContext.addApplicationListener(event -> {
+            if (event instanceof PayloadApplicationEvent
+                    && ((PayloadApplicationEvent<?>) event).getPayload() instanceof OutboxEvent) {
+                received.add((OutboxEvent) ((PayloadApplicationEvent<?>) event).getPayload());
+            }
+        });
+
+        Delivery delivery = waltService.createOrderAndAssignDriver(c1, r1, new Date(2020, Calendar.DECEMBER, 27));
+        outboxRelay.flush();
+
+        assertTrue(received.stream().anyMatch(event -> event.getDeliveryId().equals(delivery.getId())
+                && event.getDriverId().equals(delivery.getDriver().getId())
+                && event.getCityId().equals(c1.getCity().getId())));
+        assertEquals(0, outboxEventRepository.count());
+    }
+
+    /**
+     * counts the statements of order creation, of the reports and of reloading the delivery indexes,
+     * none of them may grow with the number of deliveries
+     * @throws NoDriversAvailableException
+     * @throws CitiesDontMatchException
+     */
+    @Test
+    public void statementCountTest() throws NoDriversAvailableException, CitiesDontMatchException {
+        Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+        Customer c1 = customerRepository.findByName("Bach"); //Tel-Aviv
+        Restaurant r1 = restaurantRepository.findByName("vegan"); //Tel-Aviv
+        City tlv = cityRepository.findByName("Tel-Aviv");
+
+        statistics.clear();
+        waltService.createOrderAndAssignDriver(c1, r1, new Date(2020, Calendar.DECEMBER, 24));
+        //drivers of the city, the delivery and outbox sequences, the delivery and outbox inserts
+        assertTrue(statistics.getPrepareStatementCount() <= 5);
+
+        statistics.clear();
+        waltService.getDriverRankReport();
+        waltService.getDriverRankReportByCity(tlv);
+        waltService.getDriverRankReport(0, 3);
+        assertEquals(0, statistics.getPrepareStatementCount()); //served by the leaderboard
+
+        statistics.clear();
+        waltService.getDriverRankReportByCity(tlv, new Date(2020, Calendar.DECEMBER, 8), new Date(2020, Calendar.DECEMBER, 9));
+        assertTrue(statistics.getPrepareStatementCount() <= 1); //drivers of the city, cities come from the cache
+
+        statistics.clear();
+        deliveryIndexLoader.load();
+        //the drivers, and the deliveries with their bundles
+        assertTrue(statistics.getPrepareStatementCount() <= 2);
+    }
+
     /**
      * checks if the output of getDriverRankReportByCity (city - Jerusalem), is correct according
      * to the given database of the deliveries.
@@ -373,6 +1294,39 @@ public class WaltTest {
     }
 
 
+    /**
+     * checks that a page of the rank report returns only the requested part of the ranking
+     */
+    @Test
+    public void DriverRankReportPageTest()
+    {
+        List<DriverDistance> dd = waltService.getDriverRankReport(0, 2);
+        assert(dd.size() == 2);
+        assertEquals(driverRepository.findByName("Patricia").getId(),dd.get(0).getDriver().getId());
+        assertEquals(driverRepository.findByName("Neta").getId(),dd.get(1).getDriver().getId());
+
+        dd = waltService.getDriverRankReportByCity(cityRepository.findByName("Jerusalem"), 1, 1);
+        assert(dd.size() == 1);
+        assertEquals(driverRepository.findByName("David").getId(),dd.get(0).getDriver().getId());
+        assert(dd.get(0).getTotalDistance() == 16);
+    }
+
+    /**
+     * checks that a driver added after the leaderboard was loaded is reported at once, with a total distance of 0
+     */
+    @Test
+    public void DriverRankReportNewDriverTest()
+    {
+        City haifa = cityRepository.findByName("Haifa");
+        Driver driver = driverRepository.save(new Driver("Maya", haifa));
+
+        assertEquals(driverRepository.count(), waltService.getDriverRankReport().size());
+        List<DriverDistance> dd = waltService.getDriverRankReportByCity(haifa);
+        assertTrue(dd.stream().anyMatch(driverDistance ->
+                driverDistance.getDriver().getId().equals(driver.getId()) && driverDistance.getTotalDistance() == 0));
+    }
+
+
     /**
      * checks if the output of getDriverRankReportByCity (city - Haifa), is correct according
      * to the given database of the deliveries. there are no deliveries in Haifa, hence total distance of